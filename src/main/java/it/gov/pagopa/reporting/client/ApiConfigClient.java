@@ -3,22 +3,21 @@ package it.gov.pagopa.reporting.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.JsonObjectParser;
-import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.client.util.ExponentialBackOff;
 
 import it.gov.pagopa.reporting.exception.Cache4XXException;
@@ -29,13 +28,16 @@ import it.gov.pagopa.reporting.models.cache.Station;
 
 public class ApiConfigClient {
 
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
     private static ApiConfigClient instance = null;
 
     private final HttpTransport httpTransport = new NetHttpTransport();
-    private final JsonFactory jsonFactory = new GsonFactory();
     private final String apiConfigCacheHost = System.getenv().getOrDefault("CACHE_CLIENT_HOST", ""); // es: https://api.xxx.platform.pagopa.it
     private final String getCacheDetails = System.getenv().getOrDefault("CACHE_PATH", "/cache?keys=creditorInstitutionStations,stations");
     private final String apiKey = System.getenv().getOrDefault("CACHE_API_KEY", "");
+    private final int connectTimeoutMillis   = Integer.parseInt(System.getenv().getOrDefault("CACHE_CONNECT_TIMEOUT_MILLIS", "5000"));
+    private final int readTimeoutMillis      = Integer.parseInt(System.getenv().getOrDefault("CACHE_READ_TIMEOUT_MILLIS", "30000"));
     
     // Retry ExponentialBackOff config
     private final boolean enableRetry        = Boolean.parseBoolean(System.getenv().getOrDefault("ENABLE_CLIENT_RETRY", "false"));
@@ -53,7 +55,15 @@ public class ApiConfigClient {
     }
 
     public CacheResponse getCache() throws IOException, IllegalArgumentException, Cache5XXException, Cache4XXException {
-        GenericUrl url = new GenericUrl(apiConfigCacheHost + getCacheDetails);
+        return this.getCache(getCacheDetails);
+    }
+
+    /**
+     * @param path path of a query answering in the format of the cache, e.g. restricted to some keys
+     * @return the cache entries returned by the query
+     */
+    public CacheResponse getCache(String path) throws IOException, IllegalArgumentException, Cache5XXException, Cache4XXException {
+        GenericUrl url = new GenericUrl(apiConfigCacheHost + path);
         HttpRequest request = this.buildGetRequestToApiConfigCache(url);
 
         if (enableRetry) {
@@ -65,12 +75,12 @@ public class ApiConfigClient {
 
     public HttpRequest buildGetRequestToApiConfigCache(GenericUrl url) throws IOException {
 
-        HttpRequestFactory requestFactory = httpTransport.createRequestFactory(
-                (HttpRequest request) ->
-                        request.setParser(new JsonObjectParser(jsonFactory))
-        );
+        // the response is parsed by parseCache, the request needs no parser
+        HttpRequestFactory requestFactory = httpTransport.createRequestFactory();
 
-        HttpRequest request = requestFactory.buildGetRequest(url);
+        HttpRequest request = requestFactory.buildGetRequest(url)
+                .setConnectTimeout(connectTimeoutMillis)
+                .setReadTimeout(readTimeoutMillis);
         HttpHeaders headers = request.getHeaders();
         headers.set("Ocp-Apim-Subscription-Key", apiKey);
         return request;
@@ -96,23 +106,14 @@ public class ApiConfigClient {
 
     public CacheResponse executeCallToApiConfigCache(HttpRequest request) throws IOException, IllegalArgumentException, Cache5XXException, Cache4XXException {
 
-        ObjectMapper mapper = new ObjectMapper();
         CacheResponse cacheResponse = CacheResponse.builder().build();
-        List<CreditorInstitutionStation> creditorInstitutionStationList = new ArrayList<>();
-        List<Station> stationList = new ArrayList<>();
         try {
-            InputStream resIs = request.execute().getContent();
-            Map<String,Object> responseMap = mapper.readValue(resIs, HashMap.class);
-            Map<String,Object> creditorInstitutionStations = (HashMap) responseMap.get("creditorInstitutionStations");
-            for (Map.Entry<String, Object> creditorInstitutionStation : creditorInstitutionStations.entrySet()) {
-                creditorInstitutionStationList.add(mapper.readValue(mapper.writeValueAsString(creditorInstitutionStation.getValue()), CreditorInstitutionStation.class));
-            }
-            Map<String,Object> stations = (HashMap) responseMap.get("stations");
-            for (Map.Entry<String, Object> station : stations.entrySet()) {
-                stationList.add(mapper.readValue(mapper.writeValueAsString(station.getValue()), Station.class));
+            HttpResponse response = request.execute();
+            try (InputStream resIs = response.getContent()) {
+                cacheResponse = this.parseCache(resIs);
+            } finally {
+                response.disconnect();
             }
-            cacheResponse.setStations(stationList);
-            cacheResponse.setCreditorInstitutionStations(creditorInstitutionStationList);
         } catch (HttpResponseException e) {
             if (e.getStatusCode() / 100 == 4) {
                 String message = String.format("Error %s calling the service URL %s", e.getStatusCode(), request.getUrl());
@@ -126,4 +127,51 @@ public class ApiConfigClient {
         }
         return cacheResponse;
     }
+
+    /**
+     * Parse the cache in a single pass, binding each entry of the creditorInstitutionStations and stations maps
+     * straight from the token stream; the other keys are skipped.
+     * A cache without either map is rejected, rather than read as a cache without stations.
+     */
+    private CacheResponse parseCache(InputStream content) throws IOException {
+        List<CreditorInstitutionStation> creditorInstitutionStationList = null;
+        List<Station> stationList = null;
+        try (JsonParser parser = MAPPER.getFactory().createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "api config cache is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                parser.nextToken();
+                if ("creditorInstitutionStations".equals(key)) {
+                    creditorInstitutionStationList = readEntries(parser, CreditorInstitutionStation.class);
+                } else if ("stations".equals(key)) {
+                    stationList = readEntries(parser, Station.class);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (creditorInstitutionStationList == null || stationList == null) {
+                throw new JsonParseException(parser, "api config cache without "
+                        + (creditorInstitutionStationList == null ? "creditorInstitutionStations" : "stations"));
+            }
+        }
+        return CacheResponse.builder()
+                .creditorInstitutionStations(creditorInstitutionStationList)
+                .stations(stationList)
+                .build();
+    }
+
+    // the entries are the values of a map keyed by id
+    private static <T> List<T> readEntries(JsonParser parser, Class<T> type) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "api config cache " + parser.getCurrentName() + " is not a JSON object");
+        }
+        List<T> entries = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            parser.nextToken();
+            entries.add(MAPPER.readValue(parser, type));
+        }
+        return entries;
+    }
 }
@@ -0,0 +1,22 @@
+package it.gov.pagopa.reporting.entities;
+
+import com.microsoft.azure.storage.table.TableServiceEntity;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+@Getter
+@Setter
+@NoArgsConstructor
+public class ReportedOptionEntity extends TableServiceEntity {
+
+    private String retryStep;
+
+    public ReportedOptionEntity(String idPA, String iuv, Integer transferId, String retryStep) {
+        this.partitionKey = idPA;
+        this.rowKey = iuv + "_" + transferId;
+        this.retryStep = retryStep;
+        this.etag = "*";
+    }
+
+}
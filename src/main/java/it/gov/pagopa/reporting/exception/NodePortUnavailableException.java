@@ -0,0 +1,17 @@
+package it.gov.pagopa.reporting.exception;
+
+/**
+ * No Nodo port of the station was free before the deadline of the invocation.
+ */
+public class NodePortUnavailableException extends RuntimeException {
+
+	/**
+	 * generated serialVersionUID
+	 */
+	private static final long serialVersionUID = 2841935096472135817L;
+
+	public NodePortUnavailableException(String message) {
+		super(message);
+	}
+
+}
@@ -4,16 +4,14 @@ import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.annotation.BindingName;
 import com.microsoft.azure.functions.annotation.BlobTrigger;
 import com.microsoft.azure.functions.annotation.FunctionName;
-import it.gov.pagopa.reporting.service.FlowXmlParser;
+import it.gov.pagopa.reporting.models.PaymentOptionBuffer;
+import it.gov.pagopa.reporting.service.FlowXmlStreamParser;
 import it.gov.pagopa.reporting.service.OptionsService;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.logging.Level;
@@ -25,6 +23,7 @@ import java.util.logging.Logger;
 public class ElaborateOptions {
     private final String storageConnectionString = System.getenv("FLOW_SA_CONNECTION_STRING");
     private final String optionsQueue = System.getenv("OPTIONS_QUEUE");
+    private final String streamingEnabled = System.getenv("OPTIONS_STREAMING_ENABLED");
 
     /**
      * This function will be invoked when a new or updated blob is detected at the
@@ -40,20 +39,12 @@ public class ElaborateOptions {
         logger.log(Level.INFO, () -> "Blob Trigger function executed at: " + LocalDateTime.now() + " for blob " + name);
 
         // XML File
-        String converted = new String(content, StandardCharsets.UTF_8);
-
-        logger.log(Level.INFO, () -> converted);
+        logger.log(Level.INFO, () -> "Flow blob " + name + " of " + content.length + " bytes");
+        if (logger.isLoggable(Level.FINE)) {
+            logger.log(Level.FINE, new String(content, StandardCharsets.UTF_8));
+        }
 
         try {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            // to be compliant, completely disable DOCTYPE declaration:
-            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-
-            SAXParser saxParser = factory.newSAXParser();
-
-            FlowXmlParser handler = new FlowXmlParser();
-            saxParser.parse(new InputSource(new StringReader(converted)), handler);
-
             OptionsService optionsService = this.getOptionsServiceInstance(logger);
 
             // dataOra##idPa##idflow.xml
@@ -63,14 +54,45 @@ public class ElaborateOptions {
             String idFlow = flowInfo[2].substring(0, flowInfo[2].length() - 4); // remove extension file;
             logger.log(Level.INFO, () -> "Processing flow " + idPA + "/" + idFlow + " with date " + dataFlow);
 
-            // step 11
-            optionsService.optionsProcessing(handler.getOptions(), idPA, idFlow, dataFlow);
+            if (this.isStreamingEnabled()) {
+                // step 11: batches are enqueued while the flow is still being parsed
+                this.streamOptions(optionsService, content, idPA, idFlow, dataFlow, logger);
+            } else {
+                PaymentOptionBuffer options = new FlowXmlStreamParser().parse(new ByteArrayInputStream(content));
+
+                // step 11
+                optionsService.optionsProcessing(options, idPA, idFlow, dataFlow);
+            }
 
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+        } catch (XMLStreamException | IOException | UncheckedIOException e) {
             logger.log(Level.INFO, () -> "Processing flow exception: " + e.getMessage());
         }
     }
 
+    /**
+     * Enqueue the options batch by batch while the flow is parsed.
+     * <p>
+     * Unlike the buffered mode, where a flow that can't be parsed enqueues nothing, the batches parsed before an error
+     * are already enqueued: the flow is then partly reported, and is logged as such to be reprocessed.
+     */
+    private void streamOptions(OptionsService optionsService, byte[] content, String idPA, String idFlow, String dataFlow,
+                               Logger logger) {
+        OptionsService.OptionsBatchSink sink = optionsService.openBatchSink(idPA, idFlow, dataFlow);
+        try (sink) {
+            int parsed = new FlowXmlStreamParser().parse(new ByteArrayInputStream(content), optionsService.getStreamingBatchSize(), sink);
+            logger.log(Level.INFO, () -> "Streamed " + parsed + " options of flow " + idPA + "/" + idFlow);
+        } catch (XMLStreamException | UncheckedIOException e) {
+            // the sink is closed: the enqueued batches are final
+            logger.log(Level.SEVERE, () -> "Partial flow " + idPA + "/" + idFlow + " with date " + dataFlow + ": "
+                    + sink.getReceived() + " options in " + sink.getSent() + " messages enqueued before the exception: "
+                    + e.getMessage());
+        }
+    }
+
+    protected boolean isStreamingEnabled() {
+        return Boolean.parseBoolean(streamingEnabled);
+    }
+
     public OptionsService getOptionsServiceInstance(Logger logger) {
         return new OptionsService(this.storageConnectionString, this.optionsQueue, logger);
     }
@@ -10,27 +10,49 @@ import it.gov.pagopa.reporting.client.ApiConfigClient;
 import it.gov.pagopa.reporting.exception.AppException;
 import it.gov.pagopa.reporting.models.FlowsMessage;
 import it.gov.pagopa.reporting.models.cache.CacheResponse;
-import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
 import it.gov.pagopa.reporting.models.cache.Station;
+import it.gov.pagopa.reporting.models.cache.StationIndex;
+import it.gov.pagopa.reporting.service.ConfigSnapshotCache;
 import it.gov.pagopa.reporting.service.FlowsService;
+import it.gov.pagopa.reporting.service.PaStationResolver;
+import it.gov.pagopa.reporting.service.SharedConfigSnapshotStore;
+import it.gov.pagopa.reporting.util.Deadline;
 
-import java.time.LocalDate;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * FlowsXmlDownloadFunction Azure Functions with Azure Queue trigger.
  */
 public class RetrieveDetails {
 	
-	private static CacheResponse cacheContent;
-	private static final Lock cacheLock = new ReentrantLock();
+	private static final long CACHE_TTL_SEC = Long.parseLong(System.getenv().getOrDefault("CACHE_TTL_SEC", "86400"));
+	private static final long CACHE_REFRESH_AHEAD_SEC = Long.parseLong(System.getenv().getOrDefault("CACHE_REFRESH_AHEAD_SEC", "3600"));
+	private static final ConfigSnapshotCache configCache = new ConfigSnapshotCache(CACHE_TTL_SEC, CACHE_REFRESH_AHEAD_SEC,
+			Long.parseLong(System.getenv().getOrDefault("CACHE_REFRESH_RETRY_SEC", "60")));
+	// null unless the instances share the snapshot through a blob
+	private static final SharedConfigSnapshotStore sharedConfigStore = Boolean.parseBoolean(System.getenv("CACHE_SHARED_ENABLED"))
+			? new SharedConfigSnapshotStore(System.getenv("FLOW_SA_CONNECTION_STRING"),
+					System.getenv().getOrDefault("CACHE_SHARED_CONTAINER", "apiconfigcache"),
+					System.getenv().getOrDefault("CACHE_SHARED_BLOB", "cache.json.gz"),
+					// stale when the local snapshots are refreshed
+					CACHE_TTL_SEC - CACHE_REFRESH_AHEAD_SEC,
+					Integer.parseInt(System.getenv().getOrDefault("CACHE_SHARED_LEASE_SEC", "60")),
+					Long.parseLong(System.getenv().getOrDefault("CACHE_SHARED_WAIT_MS", "10000")))
+			: null;
+	// null unless the stations are resolved per PA (CACHE_RESOLUTION_MODE=PA)
+	private static final PaStationResolver paStationResolver = "PA".equalsIgnoreCase(System.getenv("CACHE_RESOLUTION_MODE"))
+			? new PaStationResolver(Integer.parseInt(System.getenv().getOrDefault("CACHE_PA_MAX_ENTRIES", "10000")),
+					CACHE_TTL_SEC,
+					Long.parseLong(System.getenv().getOrDefault("CACHE_PA_NEGATIVE_TTL_SEC", "300")))
+			: null;
+	// query of the api config restricted to a PA, with an {idPa} placeholder; if not set, the full snapshot is
+	// still downloaded and kept, and only the stations of the PAs are cached by the resolver
+	private static final String CACHE_PA_PATH = System.getenv("CACHE_PA_PATH");
 	
     /**
      * This function will be invoked when a new message is detected in the queue
@@ -42,6 +64,7 @@ public class RetrieveDetails {
             final ExecutionContext context) {
 
         Logger logger = context.getLogger();
+        Deadline deadline = Deadline.forInvocation();
 
         try {
 
@@ -51,7 +74,7 @@ public class RetrieveDetails {
 
             // retrieve fdr from node
             this.getFlowsServiceInstance(logger, flows.getIdPA())
-                    .flowsXmlDownloading(Arrays.asList(flows.getFlows()), flows.getIdPA(), flows.getRetry() + 1);
+                    .flowsXmlDownloading(Arrays.asList(flows.getFlows()), flows.getIdPA(), flows.getRetry() + 1, deadline);
 
             logger.log(Level.INFO, () -> "[FlowsDownloadFunction END]  processed a message " + message);
         } catch (JsonProcessingException em) {
@@ -71,21 +94,19 @@ public class RetrieveDetails {
         String queueDelaySec = getVars("QUEUE_DELAY_SEC");
         
         ApiConfigClient cacheClient = this.getCacheClientInstance();
-        // Check if cache update is needed and attempt to acquire lock
-        if (isCacheUpdateNeeded() && (cacheLock.tryLock())) {
-                try {
-                    // Double-check if cache still needs updating within the lock.
-                    if (isCacheUpdateNeeded()) {
-                    	RetrieveDetails.setCache(cacheClient);
-                    }
-                } finally {
-                    cacheLock.unlock();
-                }
-            
-        }
         
         logger.log(Level.INFO, () -> "[RetrieveDetails][Config-Cache][Start] idPa: " + idPA);
-        Station stationBroker = getPAStationIntermediario(idPA)
+        Optional<Station> station;
+        if (paStationResolver != null) {
+            station = paStationResolver.resolve(idPA, pa -> this.lookupStation(cacheClient, pa));
+            logger.log(Level.INFO, () -> "[RetrieveDetails][Config-Cache] PA stations hits: " + paStationResolver.getHits()
+                    + ", misses: " + paStationResolver.getMisses() + ", negative hits: " + paStationResolver.getNegativeHits());
+        } else {
+            station = this.getSnapshot(cacheClient).getStationIndex().getStation(idPA);
+            logger.log(Level.INFO, () -> "[RetrieveDetails][Config-Cache] snapshot age ms: "
+                    + configCache.getSnapshotAgeMillis() + ", last refresh: " + configCache.getLastRefreshOutcome());
+        }
+        Station stationBroker = station
                 .orElseThrow(() -> new AppException(String.format("No data present in api config database for PA %s", idPA)));
         String idBroker = stationBroker.getBrokerCode();
         String idStation = stationBroker.getStationCode();
@@ -105,36 +126,40 @@ public class RetrieveDetails {
         return ApiConfigClient.getInstance();
     }
     
-    public static void setCacheContent(CacheResponse cacheContent) {
-		RetrieveDetails.cacheContent = cacheContent;
-	}
-    
-    private boolean isCacheUpdateNeeded() {
-        return cacheContent == null || (cacheContent.getRetrieveDate() != null &&
-                cacheContent.getRetrieveDate().isBefore(LocalDate.now()));
+    /**
+     * Only the first invocation waits for the download, the next ones get the snapshot refreshed in background.
+     */
+    private ConfigSnapshotCache.Snapshot getSnapshot(ApiConfigClient cacheClient) throws AppException {
+        return sharedConfigStore != null
+                ? configCache.getLoaded(() -> sharedConfigStore.load(cacheClient::getCache))
+                : configCache.get(cacheClient::getCache);
     }
-    
-    private static void setCache(ApiConfigClient cacheClient) throws AppException {
-        try {
-            cacheContent = cacheClient.getCache();
-            cacheContent.setRetrieveDate(LocalDate.now());
-        } catch (Exception e) {
-            cacheContent = null;
-            throw new AppException(e.getMessage());
+
+    /**
+     * Station of a PA missing from the resolver: queried alone if CACHE_PA_PATH is set,
+     * read from the full snapshot otherwise or if the query fails.
+     */
+    private Optional<Station> lookupStation(ApiConfigClient cacheClient, String idPa) throws AppException {
+        if (CACHE_PA_PATH != null && !CACHE_PA_PATH.isBlank()) {
+            try {
+                String path = CACHE_PA_PATH.replace("{idPa}", URLEncoder.encode(idPa, StandardCharsets.UTF_8));
+                return StationIndex.of(cacheClient.getCache(path)).getStation(idPa);
+            } catch (Exception e) {
+                Logger.getLogger(RetrieveDetails.class.getName()).log(Level.WARNING,
+                        () -> "[RetrieveDetails][Config-Cache] PA query failed, using the snapshot: " + e.getMessage());
+            }
         }
+        return this.getSnapshot(cacheClient).getStationIndex().getStation(idPa);
     }
-    
-    private Optional<Station> getPAStationIntermediario(String idPa) {
-        List<String> stationPa = getStations(idPa);
-        return cacheContent.getStations().stream()
-                .filter(station -> stationPa.contains(station.getStationCode()))
-                .filter(Station::getEnabled)
-                .findFirst();
-    }
-    
-    private List<String> getStations(String idPa) {
-        return cacheContent.getCreditorInstitutionStations().stream()
-                .filter(creditorInstitutionStation -> creditorInstitutionStation.getCreditorInstitutionCode().equals(idPa))
-                .map(CreditorInstitutionStation::getStationCode).collect(Collectors.toList());
+
+    public static void setCacheContent(CacheResponse cacheContent) {
+		configCache.set(cacheContent);
+	}
+
+    /**
+     * @return the api config snapshot, to read its age and refresh outcome
+     */
+    public static ConfigSnapshotCache getConfigCache() {
+        return configCache;
     }
 }
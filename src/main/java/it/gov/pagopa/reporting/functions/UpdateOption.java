@@ -1,5 +1,6 @@
 package it.gov.pagopa.reporting.functions;
 
+import com.azure.storage.blob.models.BlobStorageException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.azure.functions.ExecutionContext;
@@ -9,9 +10,18 @@ import it.gov.pagopa.reporting.models.OptionsMessage;
 import it.gov.pagopa.reporting.models.PaymentOption;
 import it.gov.pagopa.reporting.models.RetryStep;
 import it.gov.pagopa.reporting.service.GPDService;
+import it.gov.pagopa.reporting.service.InProcessRetrier;
 import it.gov.pagopa.reporting.service.OptionsService;
-
+import it.gov.pagopa.reporting.service.ReportDedupeCache;
+import it.gov.pagopa.reporting.service.ReportDispatcher;
+import it.gov.pagopa.reporting.util.Deadline;
+import it.gov.pagopa.reporting.util.RetryPolicy;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -24,6 +34,13 @@ public class UpdateOption {
     private final String maxAttempts = System.getenv("MAX_ATTEMPTS");
     private final String storageConnectionString = System.getenv("FLOW_SA_CONNECTION_STRING");
     private final String optionsQueue = System.getenv("OPTIONS_QUEUE");
+    private final String reportMode = System.getenv().getOrDefault("GPD_REPORT_MODE", "TRANSFER");
+    private final RetryPolicy retryPolicy = RetryPolicy.fromEnv("OPTIONS",
+            Integer.parseInt(System.getenv().getOrDefault("DELAY_ATTEMPS", "0")));
+    private final int deferredDelay = Integer.parseInt(System.getenv().getOrDefault("GPD_CB_DEFER_DELAY_SEC", "120"));
+    private final int inProcessRetries = Integer.parseInt(System.getenv().getOrDefault("GPD_INPROCESS_RETRIES", "2"));
+    private final long inProcessRetryDelay = Long.parseLong(System.getenv().getOrDefault("GPD_INPROCESS_RETRY_DELAY_MS", "200"));
+    private final int reportConcurrency = Integer.parseInt(System.getenv().getOrDefault("GPD_REPORT_CONCURRENCY", "1"));
 
 
     /**
@@ -36,21 +53,62 @@ public class UpdateOption {
 
         try {
             var invocationId = context.getInvocationId();
+            Deadline deadline = this.getDeadline();
             logger.log(Level.INFO, () -> "[UpdateOptionFunction START][id=" + invocationId + "]  processed a message " + message);
 
             OptionsMessage options = new ObjectMapper().readValue(message, OptionsMessage.class);
 
             logger.log(Level.INFO, () -> "[UpdateOptionFunction][id=" + invocationId + "] Update flow " + options.getIdFlow() + " with data " + options.getFlowDate());
 
+            if (options.getPaymentOptions() == null && options.getOptionsBlob() != null) {
+                // claim-check message: the options are in a chunk blob
+                try {
+                    options.setPaymentOptions(getOptionQueueService(logger).loadOptions(options));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (BlobStorageException e) {
+                    throw new UncheckedIOException(new IOException(e.getMessage(), e));
+                }
+                logger.log(Level.INFO, () -> "[UpdateOptionFunction][id=" + invocationId + "] Loaded " + options.getPaymentOptions().size()
+                        + " options from chunk " + options.getOptionsBlob());
+            }
+
             GPDService gpdService = this.getGPDServiceInstance();
-            var failed = options.getPaymentOptions()
-                    .stream()
-                    .filter(paymentOption -> {
-                        var retryStep = gpdService.setReport(options.getIdPA(), paymentOption, logger, invocationId);
-                        paymentOption.setRetryAction(retryStep.name());
-                        return !RetryStep.DONE.equals(retryStep);
-                    })
-                    .collect(Collectors.toList());
+            ReportDispatcher dispatcher = this.getReportDispatcher();
+            ReportDedupeCache dedupe = this.getReportDedupeCache();
+            // a call is started only if it can end before the deadline, otherwise the option goes back to the queue
+            long callTimeout = gpdService.getCallTimeoutMillis();
+            Function<PaymentOption, RetryStep> report = paymentOption -> deadline.allows(callTimeout)
+                    ? gpdService.setReport(options.getIdPA(), paymentOption, logger, invocationId)
+                    : RetryStep.DEFERRED;
+            Function<List<PaymentOption>, List<RetryStep>> iuvReport = transfers -> deadline.allows(callTimeout)
+                    ? gpdService.setIuvReport(options.getIdPA(), transfers, logger, invocationId, deadline)
+                    : Collections.nCopies(transfers.size(), RetryStep.DEFERRED);
+            if (dedupe != null) {
+                // skip the options whose final outcome is already known
+                Function<PaymentOption, RetryStep> singleReport = report;
+                Function<List<PaymentOption>, List<RetryStep>> bulkReport = iuvReport;
+                report = paymentOption -> dedupe.report(options.getIdPA(), paymentOption, singleReport);
+                iuvReport = transfers -> dedupe.reportIuv(options.getIdPA(), transfers, bulkReport);
+            }
+            var failed = this.isIuvReportMode()
+                    ? dispatcher.dispatchByIuv(options.getPaymentOptions(), iuvReport, deadline)
+                    : dispatcher.dispatch(options.getPaymentOptions(), report, deadline);
+            if (dedupe != null) {
+                logger.log(Level.INFO, () -> "[UpdateOptionFunction][id=" + invocationId + "] dedupe cache totals: hits " + dedupe.getHits()
+                        + ", misses " + dedupe.getMisses());
+            }
+
+            if (!failed.isEmpty() && options.getRetryCount() == 0) {
+                // transient errors of the first attempt are retried here, before going back to the queue
+                int failures = failed.size();
+                failed = this.isIuvReportMode()
+                        ? this.getInProcessRetrier().retryByIuv(failed, iuvReport, deadline)
+                        : this.getInProcessRetrier().retry(failed, report, deadline);
+                int recovered = failures - failed.size();
+                logger.log(Level.INFO, () -> "[UpdateOptionFunction][id=" + invocationId + "] " + recovered
+                        + " of " + failures + " failed options reported by in-process retries");
+            }
 
             if (!failed.isEmpty()) {
                 handleFailedRows(logger, options, failed, invocationId);
@@ -59,6 +117,11 @@ public class UpdateOption {
         } catch (JsonProcessingException em) {
 
             logger.log(Level.SEVERE, () -> "[UpdateOptionFunction Error] Invalid Message Queue " + em.getMessage() + " - message " + message);
+        } catch (UncheckedIOException eu) {
+
+            // let the runtime retry the message: the options are not in the message itself
+            logger.log(Level.SEVERE, () -> "[UpdateOptionFunction Error] Unable to load options chunk " + eu.getMessage() + " - message " + message);
+            throw eu;
         } catch (Exception e) {
 
             logger.log(Level.SEVERE, () -> "[UpdateOptionFunction Error] Generic Error " + e.getMessage() + " " + e.getCause() + " - message " + message);
@@ -74,23 +137,30 @@ public class UpdateOption {
                 .filter(elem -> RetryStep.ERROR.name().equals(elem.getRetryAction()))
                 .collect(Collectors.toList());
 
+        // if elem is not sent because GPD is down or the invocation is out of time, it doesn't spend an attempt
+        var deferred = failed.stream()
+                .filter(elem -> RetryStep.DEFERRED.name().equals(elem.getRetryAction()))
+                .collect(Collectors.toList());
+
         var retryable = failed.stream()
-                .filter(elem -> !RetryStep.ERROR.name().equals(elem.getRetryAction()))
+                .filter(elem -> !RetryStep.ERROR.name().equals(elem.getRetryAction())
+                        && !RetryStep.DEFERRED.name().equals(elem.getRetryAction()))
                 .collect(Collectors.toList());
 
+        if (!deferred.isEmpty()) {
+            logger.log(Level.WARNING, () -> String.format(
+                    "[id=%s][GPD Unavailable or out of time][setReport] %s options deferred by %s seconds", invocationId, deferred.size(), getDeferredDelay()));
+            getOptionQueueService(logger).insertMessage(this.retryMessage(options, deferred, options.getRetryCount()), getDeferredDelay());
+        }
+
         // retry only if maxRetry is not reached
         if (!retryable.isEmpty() && options.getRetryCount() < maxRetry) {
             retryable.forEach(elem -> logger.log(Level.WARNING, () -> String.format(
                     "[id=%s][GPD Error][setReport] Retry for RENDICONTATO iuv : %s , transfer: %s", invocationId, elem.getOptionId(), elem.getTransferId())));
             // insert message in queue
             var queueService = getOptionQueueService(logger);
-            OptionsMessage message = new OptionsMessage();
-            message.setIdPA(options.getIdPA());
-            message.setIdFlow(options.getIdFlow());
-            message.setFlowDate(options.getFlowDate());
-            message.setPaymentOptions(retryable);
-            message.setRetryCount(options.getRetryCount() + 1);
-            queueService.insertMessage(message);
+            queueService.insertMessage(this.retryMessage(options, retryable, options.getRetryCount() + 1),
+                    getRetryPolicy().delaySeconds(options.getRetryCount()));
         } else {
             // stop retry at max attempts
             notRetryable.addAll(retryable);
@@ -102,10 +172,64 @@ public class UpdateOption {
         }
     }
 
+    private OptionsMessage retryMessage(OptionsMessage options, List<PaymentOption> paymentOptions, int retryCount) {
+        OptionsMessage message = new OptionsMessage();
+        message.setIdPA(options.getIdPA());
+        message.setIdFlow(options.getIdFlow());
+        message.setFlowDate(options.getFlowDate());
+        message.setPaymentOptions(paymentOptions);
+        message.setRetryCount(retryCount);
+        return message;
+    }
+
+    /**
+     * @return the time budget of the invocation
+     */
+    protected Deadline getDeadline() {
+        return Deadline.forInvocation();
+    }
+
+    /**
+     * @return seconds before the options deferred by the open circuit breaker or the deadline are visible again
+     */
+    protected int getDeferredDelay() {
+        return deferredDelay;
+    }
+
+    /**
+     * @return the visibility delay of the retried options
+     */
+    protected RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
     protected int getMaxRetry() {
         return maxAttempts != null ? Integer.parseInt(maxAttempts) : 0;
     }
 
+    /**
+     * @return true to report all the transfers of an IUV with a single GPD call
+     */
+    protected boolean isIuvReportMode() {
+        return "IUV".equalsIgnoreCase(reportMode);
+    }
+
+    /**
+     * @return the cache of the reported options, null if disabled
+     */
+    protected ReportDedupeCache getReportDedupeCache() {
+        return ReportDedupeCache.getInstance();
+    }
+
+    protected InProcessRetrier getInProcessRetrier() {
+        // the retries of a message run under the same bound as its first reports
+        return new InProcessRetrier(inProcessRetries, inProcessRetryDelay, reportConcurrency);
+    }
+
+    protected ReportDispatcher getReportDispatcher() {
+        return new ReportDispatcher(reportConcurrency);
+    }
+
     public GPDService getGPDServiceInstance() {
         return GPDService.getInstance();
     }
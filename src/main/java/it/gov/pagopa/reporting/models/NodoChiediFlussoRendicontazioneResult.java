@@ -0,0 +1,18 @@
+package it.gov.pagopa.reporting.models;
+
+import it.gov.pagopa.reporting.servicewsdl.FaultBean;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import javax.activation.DataHandler;
+
+/**
+ * Outcome of a nodoChiediFlussoRendicontazione: either the fault or the xml of the flow.
+ */
+@Getter
+@AllArgsConstructor
+public class NodoChiediFlussoRendicontazioneResult {
+
+    private final FaultBean fault;
+    private final DataHandler xmlReporting;
+}
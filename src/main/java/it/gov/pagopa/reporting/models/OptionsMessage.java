@@ -1,5 +1,6 @@
 package it.gov.pagopa.reporting.models;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
@@ -21,4 +22,19 @@ public class OptionsMessage {
     // retry
     private Integer retryCount;
 
+    // claim-check: payment options stored in a blob instead of inline
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String optionsBlob;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long optionsOffset;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long optionsLength;
+
+    public OptionsMessage(String idPA, String idFlow, String flowDate, List<PaymentOption> paymentOptions, Integer retryCount) {
+        this.idPA = idPA;
+        this.idFlow = idFlow;
+        this.flowDate = flowDate;
+        this.paymentOptions = paymentOptions;
+        this.retryCount = retryCount;
+    }
 }
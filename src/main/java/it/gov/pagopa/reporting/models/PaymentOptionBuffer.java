@@ -0,0 +1,112 @@
+package it.gov.pagopa.reporting.models;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * Compact, append-only list of payment options for large flows.
+ * <p>
+ * Options are kept in primitive columns: IUVs as packed UTF-8 bytes (consecutive transfers of the same IUV share
+ * the same bytes), transfer ids as an {@code int[]} and the retry step as a byte ordinal.
+ * {@link PaymentOption} instances are only created by {@link #get(int)}, i.e. when the options are serialized;
+ * they are detached views, so changes to them are not written back to the buffer.
+ */
+public class PaymentOptionBuffer extends AbstractList<PaymentOption> implements RandomAccess {
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final byte NO_RETRY_STEP = -1;
+    private static final RetryStep[] RETRY_STEPS = RetryStep.values();
+
+    // packed IUVs: the i-th distinct IUV is iuvData[iuvOffsets[i], iuvOffsets[i + 1])
+    private byte[] iuvData;
+    private int[] iuvOffsets;
+    private int iuvCount;
+
+    // one entry per option
+    private int[] iuvRefs;
+    private int[] transferIds;
+    private byte[] retrySteps;
+    private int size;
+
+    public PaymentOptionBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PaymentOptionBuffer(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        this.iuvData = new byte[capacity * 16];
+        this.iuvOffsets = new int[capacity + 1];
+        this.iuvRefs = new int[capacity];
+        this.transferIds = new int[capacity];
+        this.retrySteps = new byte[capacity];
+    }
+
+    /**
+     * Append an option.
+     *
+     * @param iuv        the payment option IUV, may be null
+     * @param transferId the transfer index
+     * @param retryStep  the retry step, may be null
+     */
+    public void add(String iuv, int transferId, RetryStep retryStep) {
+        if (size == transferIds.length) {
+            int capacity = size + (size >> 1) + 1;
+            iuvRefs = Arrays.copyOf(iuvRefs, capacity);
+            transferIds = Arrays.copyOf(transferIds, capacity);
+            retrySteps = Arrays.copyOf(retrySteps, capacity);
+        }
+        iuvRefs[size] = iuv == null ? -1 : this.addIuv(iuv);
+        transferIds[size] = transferId;
+        retrySteps[size] = retryStep == null ? NO_RETRY_STEP : (byte) retryStep.ordinal();
+        size++;
+    }
+
+    @Override
+    public boolean add(PaymentOption option) {
+        RetryStep retryStep = option.getRetryAction() == null ? null : RetryStep.valueOf(option.getRetryAction());
+        this.add(option.getOptionId(), option.getTransferId(), retryStep);
+        return true;
+    }
+
+    @Override
+    public PaymentOption get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        int ref = iuvRefs[index];
+        String iuv = ref < 0 ? null
+                : new String(iuvData, iuvOffsets[ref], iuvOffsets[ref + 1] - iuvOffsets[ref], StandardCharsets.UTF_8);
+        byte step = retrySteps[index];
+        return new PaymentOption(iuv, transferIds[index], step == NO_RETRY_STEP ? null : RETRY_STEPS[step].name());
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private int addIuv(String iuv) {
+        byte[] bytes = iuv.getBytes(StandardCharsets.UTF_8);
+        if (iuvCount > 0 && this.isLastIuv(bytes)) {
+            return iuvCount - 1;
+        }
+        int start = iuvOffsets[iuvCount];
+        if (start + bytes.length > iuvData.length) {
+            iuvData = Arrays.copyOf(iuvData, Math.max(iuvData.length + (iuvData.length >> 1), start + bytes.length));
+        }
+        if (iuvCount + 1 == iuvOffsets.length) {
+            iuvOffsets = Arrays.copyOf(iuvOffsets, iuvOffsets.length + (iuvOffsets.length >> 1) + 1);
+        }
+        System.arraycopy(bytes, 0, iuvData, start, bytes.length);
+        iuvOffsets[iuvCount + 1] = start + bytes.length;
+        return iuvCount++;
+    }
+
+    private boolean isLastIuv(byte[] bytes) {
+        int start = iuvOffsets[iuvCount - 1];
+        int end = iuvOffsets[iuvCount];
+        return Arrays.equals(iuvData, start, end, bytes, 0, bytes.length);
+    }
+}
@@ -7,5 +7,6 @@ public enum RetryStep {
     NONE,  // not executed
     RETRY, // to retry
     DONE,  // done
-    ERROR  // skip retry
+    ERROR, // skip retry
+    DEFERRED // not executed, GPD unavailable or invocation out of time: retry later without spending an attempt
 }
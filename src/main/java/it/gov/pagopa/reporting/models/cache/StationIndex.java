@@ -0,0 +1,56 @@
+package it.gov.pagopa.reporting.models.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Immutable index of the api config cache: the station resolved for each creditor institution,
+ * i.e. the first enabled station of the creditor institution in the order of the stations list.
+ * <p>
+ * Built once per cache refresh in O(stations + creditor institution stations), so that a lookup is a hash get.
+ */
+public final class StationIndex {
+
+    private final Map<String, Station> stationByCreditorInstitution;
+
+    private StationIndex(Map<String, Station> stationByCreditorInstitution) {
+        this.stationByCreditorInstitution = stationByCreditorInstitution;
+    }
+
+    public static StationIndex of(CacheResponse cache) {
+        // station code -> creditor institutions using it
+        Map<String, List<String>> creditorInstitutionsByStation = new HashMap<>();
+        for (CreditorInstitutionStation ciStation : cache.getCreditorInstitutionStations()) {
+            creditorInstitutionsByStation.computeIfAbsent(ciStation.getStationCode(), code -> new ArrayList<>())
+                    .add(ciStation.getCreditorInstitutionCode());
+        }
+
+        Map<String, Station> stationByCreditorInstitution = new HashMap<>();
+        for (Station station : cache.getStations()) {
+            if (!Boolean.TRUE.equals(station.getEnabled())) {
+                continue;
+            }
+            List<String> creditorInstitutions = creditorInstitutionsByStation.get(station.getStationCode());
+            if (creditorInstitutions != null) {
+                creditorInstitutions.forEach(ci -> stationByCreditorInstitution.putIfAbsent(ci, station));
+            }
+        }
+        return new StationIndex(Collections.unmodifiableMap(stationByCreditorInstitution));
+    }
+
+    /**
+     * @param creditorInstitutionCode fiscal code of the creditor institution
+     * @return its first enabled station
+     */
+    public Optional<Station> getStation(String creditorInstitutionCode) {
+        return Optional.ofNullable(stationByCreditorInstitution.get(creditorInstitutionCode));
+    }
+
+    public int size() {
+        return stationByCreditorInstitution.size();
+    }
+}
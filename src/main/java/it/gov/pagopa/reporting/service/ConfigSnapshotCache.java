@@ -0,0 +1,283 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.exception.AppException;
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import it.gov.pagopa.reporting.models.cache.StationIndex;
+
+import java.time.LocalDate;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Api config snapshot shared by the invocations of the worker.
+ * <p>
+ * Only the first invocation waits for the download. Afterwards the snapshot is refreshed in background
+ * {@code refreshAhead} before it is {@code ttl} old, and the new one is published with an atomic swap.
+ * When a refresh fails the last good snapshot keeps being served, however old, and the refresh is retried.
+ * <p>
+ * A loader can return content downloaded earlier, e.g. by another instance: the age of the snapshot is counted from
+ * that download, and stale content is retried like a failed refresh.
+ */
+public class ConfigSnapshotCache {
+
+    public enum RefreshOutcome {
+        NONE, SUCCESS, FAILURE
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigSnapshotCache.class.getName());
+
+    private final long ttlNanos;
+    private final long refreshAheadNanos;
+    private final long retryNanos;
+    private final LongSupplier clock;
+    // null when the refresh is only triggered by the readers
+    private final ScheduledExecutorService scheduler;
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final AtomicReference<RefreshOutcome> lastOutcome = new AtomicReference<>(RefreshOutcome.NONE);
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // clock of the last download attempt, to retry a failed refresh at most every retryNanos
+    private final AtomicLong lastAttemptAt = new AtomicLong();
+    private final Object loadLock = new Object();
+    private volatile Callable<Loaded> loader;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    public ConfigSnapshotCache(long ttlSeconds, long refreshAheadSeconds, long retrySeconds) {
+        this(ttlSeconds, refreshAheadSeconds, retrySeconds, System::nanoTime, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "config-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    ConfigSnapshotCache(long ttlSeconds, long refreshAheadSeconds, long retrySeconds, LongSupplier clock,
+                        ScheduledExecutorService scheduler) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 1));
+        this.refreshAheadNanos = Math.min(TimeUnit.SECONDS.toNanos(Math.max(refreshAheadSeconds, 0)), ttlNanos);
+        this.retryNanos = TimeUnit.SECONDS.toNanos(Math.max(retrySeconds, 1));
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param loader download of the api config, used now if there is no snapshot yet and by the next refreshes
+     * @return the current snapshot
+     * @throws AppException if there is no snapshot and the download fails
+     */
+    public Snapshot get(Callable<CacheResponse> loader) throws AppException {
+        return this.getLoaded(() -> Loaded.now(loader.call()));
+    }
+
+    /**
+     * @param loader download of the api config, with the time it was downloaded at
+     * @return the current snapshot
+     * @throws AppException if there is no snapshot and the download fails
+     * @see #get(Callable)
+     */
+    public Snapshot getLoaded(Callable<Loaded> loader) throws AppException {
+        this.loader = loader;
+        Snapshot current = snapshot.get();
+        if (current == null) {
+            synchronized (loadLock) {
+                current = snapshot.get();
+                if (current == null) {
+                    current = this.load(loader);
+                }
+            }
+        } else if (scheduler != null && this.isRefreshDue(current)) {
+            // the scheduled refresh is late, e.g. the worker was idle: start it now without waiting for it
+            scheduler.execute(this::refresh);
+        }
+        return current;
+    }
+
+    /**
+     * Publish the given content, or drop the snapshot if null.
+     */
+    public void set(CacheResponse content) {
+        synchronized (loadLock) {
+            if (content == null) {
+                snapshot.set(null);
+                this.cancelScheduledRefresh();
+            } else {
+                this.publish(Loaded.now(content));
+            }
+        }
+    }
+
+    /**
+     * Download a new snapshot, keeping the current one if the download fails.
+     */
+    void refresh() {
+        Callable<Loaded> currentLoader = this.loader;
+        if (currentLoader == null || !refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.load(currentLoader);
+        } catch (AppException e) {
+            LOGGER.log(Level.WARNING, () -> "[ConfigSnapshotCache] refresh failed, serving a snapshot "
+                    + this.getSnapshotAgeMillis() + " ms old: " + e.getMessage());
+            this.scheduleRefresh(retryNanos);
+        } finally {
+            refreshing.set(false);
+        }
+    }
+
+    /**
+     * @return age in millis of the served snapshot, -1 if there is none
+     */
+    public long getSnapshotAgeMillis() {
+        Snapshot current = snapshot.get();
+        return current != null ? TimeUnit.NANOSECONDS.toMillis(clock.getAsLong() - current.loadedAt) : -1;
+    }
+
+    public RefreshOutcome getLastRefreshOutcome() {
+        return lastOutcome.get();
+    }
+
+    public long getRefreshSuccesses() {
+        return successes.get();
+    }
+
+    public long getRefreshFailures() {
+        return failures.get();
+    }
+
+    private boolean isRefreshDue(Snapshot current) {
+        long now = clock.getAsLong();
+        long lastAttempt = lastAttemptAt.get();
+        return now - current.loadedAt >= ttlNanos - refreshAheadNanos && !refreshing.get()
+                && now - lastAttempt >= retryNanos && lastAttemptAt.compareAndSet(lastAttempt, now);
+    }
+
+    private Snapshot load(Callable<Loaded> loader) throws AppException {
+        lastAttemptAt.set(clock.getAsLong());
+        Loaded loaded;
+        try {
+            loaded = loader.call();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            lastOutcome.set(RefreshOutcome.FAILURE);
+            throw new AppException(e.getMessage());
+        }
+        if (loaded.stale) {
+            failures.incrementAndGet();
+            lastOutcome.set(RefreshOutcome.FAILURE);
+        } else {
+            successes.incrementAndGet();
+            lastOutcome.set(RefreshOutcome.SUCCESS);
+        }
+        return this.publish(loaded);
+    }
+
+    private Snapshot publish(Loaded loaded) {
+        CacheResponse content = loaded.content;
+        content.setRetrieveDate(LocalDate.now());
+        // the wall clock age of the content, on the cache clock
+        long ageNanos = loaded.downloadedNow ? 0
+                : TimeUnit.MILLISECONDS.toNanos(Math.max(System.currentTimeMillis() - loaded.downloadedAt, 0));
+        Snapshot next = new Snapshot(content, StationIndex.of(content), clock.getAsLong() - ageNanos);
+        snapshot.set(next);
+        // stale content is refreshed as soon as a failed refresh, old content no earlier than that
+        this.scheduleRefresh(loaded.stale ? retryNanos : Math.max(ttlNanos - refreshAheadNanos - ageNanos, retryNanos));
+        return next;
+    }
+
+    private synchronized void scheduleRefresh(long delayNanos) {
+        if (scheduler == null) {
+            return;
+        }
+        this.cancelScheduledRefresh();
+        scheduledRefresh = scheduler.schedule(this::refresh, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void cancelScheduledRefresh() {
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+            scheduledRefresh = null;
+        }
+    }
+
+    /**
+     * Api config returned by a loader.
+     */
+    public static final class Loaded {
+        private final CacheResponse content;
+        // wall clock millis of the download from the api config
+        private final long downloadedAt;
+        // true when it is served because a newer one couldn't be downloaded
+        private final boolean stale;
+        // true when it was downloaded by this load, so that it isn't aged by the clock ticks since
+        private final boolean downloadedNow;
+
+        private Loaded(CacheResponse content, long downloadedAt, boolean stale, boolean downloadedNow) {
+            this.content = content;
+            this.downloadedAt = downloadedAt;
+            this.stale = stale;
+            this.downloadedNow = downloadedNow;
+        }
+
+        /**
+         * @return content just downloaded from the api config
+         */
+        public static Loaded now(CacheResponse content) {
+            return new Loaded(content, System.currentTimeMillis(), false, true);
+        }
+
+        /**
+         * @param content      the api config
+         * @param downloadedAt wall clock millis of its download from the api config
+         * @param stale        true if a newer one couldn't be downloaded
+         * @return content downloaded earlier
+         */
+        public static Loaded of(CacheResponse content, long downloadedAt, boolean stale) {
+            return new Loaded(content, downloadedAt, stale, false);
+        }
+
+        public CacheResponse getContent() {
+            return content;
+        }
+
+        public long getDownloadedAt() {
+            return downloadedAt;
+        }
+
+        public boolean isStale() {
+            return stale;
+        }
+    }
+
+    /**
+     * Immutable api config snapshot, with its station index.
+     */
+    public static final class Snapshot {
+        private final CacheResponse content;
+        private final StationIndex stationIndex;
+        private final long loadedAt;
+
+        private Snapshot(CacheResponse content, StationIndex stationIndex, long loadedAt) {
+            this.content = content;
+            this.stationIndex = stationIndex;
+            this.loadedAt = loadedAt;
+        }
+
+        public CacheResponse getContent() {
+            return content;
+        }
+
+        public StationIndex getStationIndex() {
+            return stationIndex;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.util.Deadline;
+import it.gov.pagopa.reporting.util.WorkerPools;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Downloads the flows of a message, running at most {@code concurrency} downloads of the message at the same time
+ * and, across all the messages of the worker, at most {@code stationConcurrency} downloads of the same station.
+ * <p>
+ * With a concurrency of 1 the flows are downloaded one after another on the caller thread;
+ * with a station concurrency of 0 the downloads of a station aren't limited.
+ * Otherwise the caller waits until the deadline at most: the flows not started by then are deferred,
+ * the running downloads are left to complete on their own.
+ */
+public class FlowDownloadDispatcher {
+
+    private static final ExecutorService EXECUTOR = WorkerPools.fixed("flows-download", "FLOWS_DOWNLOAD_THREADS", 16);
+    // permits of each station, shared by the messages of the worker
+    private static final Map<String, Semaphore> STATION_PERMITS = new ConcurrentHashMap<>();
+
+    private final int concurrency;
+    private final int stationConcurrency;
+
+    public FlowDownloadDispatcher(int concurrency, int stationConcurrency) {
+        this.concurrency = Math.max(concurrency, 1);
+        this.stationConcurrency = Math.max(stationConcurrency, 0);
+    }
+
+    /**
+     * Download every flow, deferring the ones that can't start with {@code callTimeoutMillis} left before the deadline
+     * and the ones whose download throws.
+     *
+     * @see #dispatch(String, List, Deadline, long, Consumer, Consumer, BiConsumer)
+     */
+    public <T> void dispatch(String station, List<T> flows, Deadline deadline, long callTimeoutMillis,
+                             Consumer<T> download, Consumer<T> defer) {
+        this.dispatch(station, flows, deadline, callTimeoutMillis, download, defer, (flow, e) -> defer.accept(flow));
+    }
+
+    /**
+     * Download every flow, deferring the ones that can't start with {@code callTimeoutMillis} left before the deadline,
+     * either because it is near or because the station has no permit free until then.
+     * <p>
+     * A download that throws is handed to {@code fail} and doesn't stop the other flows of the message.
+     *
+     * @param station           key of the station, e.g. broker and station codes
+     * @param flows             flows of the message
+     * @param deadline          deadline of the invocation
+     * @param callTimeoutMillis the longest time a download can take
+     * @param download          the download of a single flow
+     * @param defer             the deferral of a flow to a later invocation
+     * @param fail              the handling of a flow whose download threw
+     */
+    public <T> void dispatch(String station, List<T> flows, Deadline deadline, long callTimeoutMillis,
+                             Consumer<T> download, Consumer<T> defer, BiConsumer<T, RuntimeException> fail) {
+        Semaphore permits = stationConcurrency > 0
+                ? STATION_PERMITS.computeIfAbsent(station, key -> new Semaphore(stationConcurrency))
+                : null;
+        this.run(flows.size(), deadline, i -> defer.accept(flows.get(i)), i -> {
+            T flow = flows.get(i);
+            if (!deadline.allows(callTimeoutMillis) || !acquire(permits, deadline, callTimeoutMillis)) {
+                defer.accept(flow);
+                return;
+            }
+            try {
+                download.accept(flow);
+            } catch (RuntimeException e) {
+                fail.accept(flow, e);
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getStationConcurrency() {
+        return stationConcurrency;
+    }
+
+    private static boolean acquire(Semaphore permits, Deadline deadline, long callTimeoutMillis) {
+        if (permits == null) {
+            return true;
+        }
+        long waitMillis = deadline.remainingMillis() - callTimeoutMillis;
+        try {
+            return permits.tryAcquire(Math.max(waitMillis, 0), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param tasks    number of tasks
+     * @param deadline deadline of the invocation
+     * @param skip     the deferral of a task not started before the deadline
+     * @param task     the task
+     */
+    private void run(int tasks, Deadline deadline, IntConsumer skip, IntConsumer task) {
+        int workers = Math.min(concurrency, tasks);
+        if (workers <= 1) {
+            for (int i = 0; i < tasks; i++) {
+                task.accept(i);
+            }
+            return;
+        }
+        // next task to start, guarded by itself; tasks is the end once closed
+        int[] next = {0};
+        IntSupplier claim = () -> {
+            synchronized (next) {
+                return next[0] < tasks ? next[0]++ : -1;
+            }
+        };
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Runnable worker = () -> {
+            int i;
+            while (error.get() == null && (i = claim.getAsInt()) >= 0) {
+                try {
+                    task.accept(i);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+        CompletableFuture<?>[] running = new CompletableFuture<?>[workers];
+        for (int w = 0; w < workers; w++) {
+            running[w] = CompletableFuture.runAsync(worker, EXECUTOR);
+        }
+        try {
+            CompletableFuture.allOf(running).get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // out of time: no other task is started
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int started;
+        synchronized (next) {
+            started = next[0];
+            next[0] = tasks;
+        }
+        // after an error too: no flow of the message is left behind
+        for (int i = started; i < tasks; i++) {
+            skip.accept(i);
+        }
+        rethrow(error.get());
+    }
+
+    private static void rethrow(Throwable error) {
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.PaymentOptionBuffer;
+import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.XmlParserProvider;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * StAX counterpart of {@link FlowXmlParser}: reads the flow straight from the blob bytes,
+ * without building an intermediate String of the whole document.
+ */
+public class FlowXmlStreamParser {
+
+    private static final String IUV_TAG = "identificativoUnivocoVersamento";
+    private static final String TRANSFER_TAG = "indiceDatiSingoloPagamento";
+
+    private String iuv;
+
+    /**
+     * Parse the whole flow into a compact {@link PaymentOptionBuffer}.
+     *
+     * @param content flow XML
+     * @return the parsed options
+     */
+    public PaymentOptionBuffer parse(InputStream content) throws XMLStreamException {
+        PaymentOptionBuffer options = new PaymentOptionBuffer();
+        read(content, (optionId, transferId) -> options.add(optionId, transferId, RetryStep.NONE));
+        return options;
+    }
+
+    /**
+     * Parse the flow pushing the options to the sink in batches of {@code batchSize} elements,
+     * as soon as each batch is complete. The last batch may be smaller.
+     *
+     * @param content   flow XML
+     * @param batchSize number of options for each batch
+     * @param sink      receives the batches while the flow is still being parsed
+     * @return the number of parsed options
+     */
+    public int parse(InputStream content, int batchSize, Consumer<List<PaymentOption>> sink) throws XMLStreamException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        List<PaymentOption> batch = new ArrayList<>(batchSize);
+        int[] count = {0};
+        read(content, (optionId, transferId) -> {
+            batch.add(new PaymentOption(optionId, transferId, RetryStep.NONE.name()));
+            count[0]++;
+            if (batch.size() == batchSize) {
+                sink.accept(new ArrayList<>(batch));
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            sink.accept(new ArrayList<>(batch));
+        }
+        return count[0];
+    }
+
+    private void read(InputStream content, OptionHandler handler) throws XMLStreamException {
+        XMLStreamReader reader = XmlParserProvider.getXMLInputFactory().createXMLStreamReader(content);
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.DTD) {
+                    // to be compliant, reject any DOCTYPE declaration as the SAX parser did
+                    throw new XMLStreamException("DOCTYPE is not allowed", reader.getLocation());
+                }
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String tag = qName(reader);
+                    if (IUV_TAG.equalsIgnoreCase(tag)) {
+                        iuv = reader.getElementText();
+                    } else if (TRANSFER_TAG.equalsIgnoreCase(tag)) {
+                        int transfer = Integer.parseInt(reader.getElementText());
+                        handler.option(iuv, transfer);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Same name the SAX handler matched on: the prefixed name as written in the document.
+     */
+    private static String qName(XMLStreamReader reader) {
+        String prefix = reader.getPrefix();
+        return prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+
+    @FunctionalInterface
+    private interface OptionHandler {
+        void option(String optionId, int transferId);
+    }
+}
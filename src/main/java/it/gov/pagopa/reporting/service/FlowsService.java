@@ -1,13 +1,12 @@
 package it.gov.pagopa.reporting.service;
 
-import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
-import com.azure.storage.blob.BlobContainerClient;
-import com.azure.storage.blob.BlobServiceClient;
-import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.ParallelTransferOptions;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.queue.CloudQueue;
 import com.microsoft.azure.storage.queue.CloudQueueMessage;
@@ -15,20 +14,25 @@ import com.microsoft.azure.storage.table.CloudTable;
 import com.microsoft.azure.storage.table.TableOperation;
 import com.sun.xml.ws.client.ClientTransportException;
 import it.gov.pagopa.reporting.entities.FlowEntity;
+import it.gov.pagopa.reporting.exception.NodePortUnavailableException;
 import it.gov.pagopa.reporting.models.FlowsMessage;
+import it.gov.pagopa.reporting.models.NodoChiediFlussoRendicontazioneResult;
 import it.gov.pagopa.reporting.servicewsdl.FaultBean;
 import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
 import it.gov.pagopa.reporting.util.AzuriteStorageUtil;
+import it.gov.pagopa.reporting.util.Deadline;
+import it.gov.pagopa.reporting.util.RetryPolicy;
+import it.gov.pagopa.reporting.util.StorageClientRegistry;
 
 import javax.activation.DataHandler;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.IntStream;
 
 public class FlowsService {
 
@@ -42,6 +46,12 @@ public class FlowsService {
     private final int timeToLiveInSeconds;
     private final int initialVisibilityDelayInSeconds;
     private final int maxRetryQueuing;
+    private final RetryPolicy retryPolicy;
+    private final int deferDelay = Integer.parseInt(System.getenv().getOrDefault("FLOWS_DEFER_DELAY_SEC", "120"));
+    private final int downloadConcurrency = Integer.parseInt(System.getenv().getOrDefault("FLOWS_DOWNLOAD_CONCURRENCY", "1"));
+    private final int stationConcurrency = Integer.parseInt(System.getenv().getOrDefault("FLOWS_STATION_CONCURRENCY", "0"));
+    private final long uploadBlockSize = Long.parseLong(System.getenv().getOrDefault("FLOWS_UPLOAD_BLOCK_SIZE_BYTES", "4194304"));
+    private final int uploadConcurrency = Integer.parseInt(System.getenv().getOrDefault("FLOWS_UPLOAD_CONCURRENCY", "2"));
     private final Logger logger;
 
     public FlowsService(String storageConnectionString, String identificativoIntemediarioPA,
@@ -58,10 +68,18 @@ public class FlowsService {
         this.timeToLiveInSeconds = timeToLiveInSeconds;
         this.initialVisibilityDelayInSeconds = initialVisibilityDelayInSeconds;
         this.maxRetryQueuing = maxRetryQueuing;
+        this.retryPolicy = RetryPolicy.fromEnv("FLOWS", initialVisibilityDelayInSeconds);
         this.logger = logger;
     }
 
     public void flowsXmlDownloading(List<TipoIdRendicontazione> flows, String idPA, Integer retry) {
+        this.flowsXmlDownloading(flows, idPA, retry, Deadline.forInvocation());
+    }
+
+    /**
+     * Download the flows, re-queuing without spending a retry the ones that can't be downloaded before the deadline.
+     */
+    public void flowsXmlDownloading(List<TipoIdRendicontazione> flows, String idPA, Integer retry, Deadline deadline) {
 
         this.logger.log(Level.INFO, "[RetrieveDetails/FlowsService] START flows downloading ");
 
@@ -75,94 +93,163 @@ public class FlowsService {
 
         NodeService nodeService = this.getNodeServiceInstance();
 
-        IntStream.range(0, flows.size()).forEach(index -> {
-            TipoIdRendicontazione flow = flows.get(index);
-            try {
-                // nodoChiediFlussoRendicontazione(idPA, idFlow)
-                // https://github.com/pagopa/pagopa-api/blob/master/nodo/NodoPerPa.wsdl#L523
-                nodeService.callNodoChiediFlussoRendicontazione(idPA, flow.getIdentificativoFlusso());
-
-                FaultBean faultBean = nodeService.getNodoChiediFlussoRendicontazioneFault();
-                DataHandler xmlReporting = nodeService.getNodoChiediElencoFlussiRendicontazioneXmlReporting();
-
-                if (faultBean != null) {
-                    logger.log(Level.SEVERE,
-                            () -> "[RetrieveDetails/FlowsService] faultBean DESC " + faultBean.getDescription());
-                    // TODO to analyze what should be done
-                } else if (xmlReporting != null) {
-                    saveBlob(flow, idPA, xmlReporting);
-
-                    logger.log(Level.INFO, () ->
-                            "[RetrieveDetails/FlowsService] Uploaded in " + this.containerBlob);
-                }
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Upload failed in " + this.containerBlob);
-            } catch (ClientTransportException e) {
-                logger.log(Level.SEVERE, () -> "[NODO Connection down] idPA: [" + idPA +"], idFlow: [" + flow.getIdentificativoFlusso() + "] Caused by: " + e.getCause() + " Message: " + e.getMessage() + " Stack trace: " + Arrays.toString(e.getStackTrace()));
-
-                if (retry < maxRetryQueuing) {
-                    try {
-                        reQueuingMessage(idPA, flow, retry);
-                    } catch (URISyntaxException | StorageException | InvalidKeyException | JsonProcessingException ex) {
-                        logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Problem to re-queuing: " + idPA + " - " + flow.getIdentificativoFlusso());
-                    }
-                } else {
-                    logger.log(Level.SEVERE, () -> "[NODO Connection down]  Max retry exceeded.");
-
-                    try {
-                        removeFlowFromFlowsTable(idPA, flow);
-                    } catch (URISyntaxException | StorageException | InvalidKeyException ex) {
-                        logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Problem to delete flow from FlowsTable: "
-                                + idPA + " - " + flow.getIdentificativoFlusso());
-                    }
-                }
-            }
-        });
+        this.getFlowDownloadDispatcher().dispatch(
+                this.identificativoIntemediarioPA + "|" + this.identificativoStazioneIntermediarioPA, flows, deadline,
+                nodeService.getCallTimeoutMillis(),
+                flow -> downloadFlow(nodeService, flow, idPA, retry, deadline),
+                flow -> deferFlow(idPA, flow, retry),
+                (flow, e) -> failFlow(idPA, flow, retry, e));
 
         this.logger.log(Level.INFO, "[RetrieveDetails/FlowsService] END flows storing ");
     }
 
-    protected void saveBlob(TipoIdRendicontazione flow, String idPA, DataHandler xmlReporting) throws IOException {
-        BlobServiceClient blobServiceClient = new BlobServiceClientBuilder()
-                .connectionString(this.storageConnectionString).buildClient();
+    /**
+     * Download a flow and save it, re-queuing it if the Nodo is unreachable.
+     */
+    private void downloadFlow(NodeService nodeService, TipoIdRendicontazione flow, String idPA, int retry, Deadline deadline) {
+        try {
+            // nodoChiediFlussoRendicontazione(idPA, idFlow)
+            // https://github.com/pagopa/pagopa-api/blob/master/nodo/NodoPerPa.wsdl#L523
+            NodoChiediFlussoRendicontazioneResult result =
+                    nodeService.callNodoChiediFlussoRendicontazione(idPA, flow.getIdentificativoFlusso(), deadline);
+
+            FaultBean faultBean = result.getFault();
+            DataHandler xmlReporting = result.getXmlReporting();
+
+            if (faultBean != null) {
+                logger.log(Level.SEVERE,
+                        () -> "[RetrieveDetails/FlowsService] faultBean DESC " + faultBean.getDescription());
+                // TODO to analyze what should be done
+            } else if (xmlReporting != null) {
+                saveBlob(flow, idPA, xmlReporting);
+
+                logger.log(Level.INFO, () ->
+                        "[RetrieveDetails/FlowsService] Uploaded in " + this.containerBlob);
+            }
+        } catch (NodePortUnavailableException e) {
+            // the station ports were all busy until the deadline: nothing was asked to the Nodo
+            deferFlow(idPA, flow, retry);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Upload failed in " + this.containerBlob);
+        } catch (ClientTransportException e) {
+            logger.log(Level.SEVERE, () -> "[NODO Connection down] idPA: [" + idPA +"], idFlow: [" + flow.getIdentificativoFlusso() + "] Caused by: " + e.getCause() + " Message: " + e.getMessage() + " Stack trace: " + Arrays.toString(e.getStackTrace()));
 
-        BlobContainerClient flowsContainerClient = blobServiceClient.getBlobContainerClient(this.containerBlob);
+            retryFlow(idPA, flow, retry);
+        }
+    }
+
+    /**
+     * A download that threw an unexpected exception is retried like an unreachable Nodo,
+     * so that the other flows of the message go on.
+     */
+    private void failFlow(String idPA, TipoIdRendicontazione flow, int retry, RuntimeException e) {
+        logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Download failed idPA: [" + idPA + "], idFlow: ["
+                + flow.getIdentificativoFlusso() + "] Caused by: " + e.getCause() + " Message: " + e.getMessage());
+
+        retryFlow(idPA, flow, retry);
+    }
 
+    private void retryFlow(String idPA, TipoIdRendicontazione flow, int retry) {
+        if (retry < maxRetryQueuing) {
+            try {
+                reQueuingMessage(idPA, flow, retry);
+            } catch (URISyntaxException | StorageException | InvalidKeyException | JsonProcessingException ex) {
+                logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Problem to re-queuing: " + idPA + " - " + flow.getIdentificativoFlusso());
+            }
+        } else {
+            logger.log(Level.SEVERE, () -> "[NODO Connection down]  Max retry exceeded.");
+
+            try {
+                removeFlowFromFlowsTable(idPA, flow);
+            } catch (URISyntaxException | StorageException | InvalidKeyException ex) {
+                logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Problem to delete flow from FlowsTable: "
+                        + idPA + " - " + flow.getIdentificativoFlusso());
+            }
+        }
+    }
+
+    private void deferFlow(String idPA, TipoIdRendicontazione flow, int retry) {
+        logger.log(Level.WARNING, () -> "[RetrieveDetails/FlowsService] Out of time, re-queuing: " + idPA + " - " + flow.getIdentificativoFlusso());
+        try {
+            // the message keeps the retry of this invocation, and comes back after the defer delay, not a backoff
+            reQueuingMessage(idPA, flow, retry - 1, deferDelay);
+        } catch (URISyntaxException | StorageException | InvalidKeyException | JsonProcessingException ex) {
+            logger.log(Level.SEVERE, () -> "[RetrieveDetails/FlowsService] Problem to re-queuing: " + idPA + " - " + flow.getIdentificativoFlusso());
+        }
+    }
+
+    protected void saveBlob(TipoIdRendicontazione flow, String idPA, DataHandler xmlReporting) throws IOException {
         // dataOra##idPa##idflow.xml
         // added split to remove millis from name
-        BlobClient blobClient = flowsContainerClient.getBlobClient(
+        BlobClient blobClient = this.getBlobClient(
                 flow.getDataOraFlusso().toString().split("\\.")[0] + "##" + idPA + "##" + flow.getIdentificativoFlusso() + ".xml"
         );
 
         logger.log(Level.INFO, () ->
                 "[RetrieveDetails/FlowsService] Uploading " + blobClient.getBlobUrl() + " in " + this.containerBlob);
 
+        // stream the xml in staged blocks: at most a block per concurrent upload is held in memory
+        ParallelTransferOptions transferOptions = new ParallelTransferOptions()
+                .setBlockSizeLong(this.getUploadBlockSize())
+                .setMaxSingleUploadSizeLong(this.getUploadBlockSize())
+                .setMaxConcurrency(this.getUploadConcurrency());
+        try (InputStream xml = xmlReporting.getInputStream()) {
+            blobClient.uploadWithResponse(new BlobParallelUploadOptions(xml)
+                    .setParallelTransferOptions(transferOptions)
+                    // as before, a flow already saved is not overwritten
+                    .setRequestConditions(new BlobRequestConditions().setIfNoneMatch("*")),
+                    null, Context.NONE);
+        } catch (RuntimeException e) {
+            // read errors of the xml stream come back wrapped by the upload
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    protected BlobClient getBlobClient(String blobName) {
+        return StorageClientRegistry.getBlobContainerClient(this.storageConnectionString, this.containerBlob).getBlobClient(blobName);
+    }
+
+    protected long getUploadBlockSize() {
+        return this.uploadBlockSize;
+    }
 
-        // save base64 as xml string
-        blobClient.upload(BinaryData.fromStream(xmlReporting.getInputStream()));
+    protected int getUploadConcurrency() {
+        return this.uploadConcurrency;
     }
 
     protected void reQueuingMessage(String idPA, TipoIdRendicontazione flow, int retry) throws URISyntaxException, InvalidKeyException, StorageException, JsonProcessingException {
-        CloudQueue queue = CloudStorageAccount.parse(storageConnectionString).createCloudQueueClient()
-                .getQueueReference(this.flowsQueue);
+        // retry is 1 for the first attempt
+        reQueuingMessage(idPA, flow, retry, retryPolicy.delaySeconds(retry - 1));
+    }
+
+    protected void reQueuingMessage(String idPA, TipoIdRendicontazione flow, int retry, int delay) throws URISyntaxException, InvalidKeyException, StorageException, JsonProcessingException {
+        CloudQueue queue = StorageClientRegistry.getQueue(storageConnectionString, this.flowsQueue);
 
         FlowsMessage fm = new FlowsMessage();
         fm.setFlows(new TipoIdRendicontazione[]{flow});
         fm.setIdPA(idPA);
         fm.setRetry(retry);
         String message = new ObjectMapper().writeValueAsString(fm);
-        queue.addMessage(new CloudQueueMessage(message), timeToLiveInSeconds, initialVisibilityDelayInSeconds, null, null);
+        // the message must become visible before it expires
+        int visibilityDelay = timeToLiveInSeconds > 0 ? Math.min(delay, timeToLiveInSeconds - 1) : delay;
+        queue.addMessage(new CloudQueueMessage(message), timeToLiveInSeconds, visibilityDelay, null, null);
     }
 
     protected void removeFlowFromFlowsTable(String idPA, TipoIdRendicontazione flow) throws URISyntaxException, InvalidKeyException, StorageException {
-        CloudTable table = CloudStorageAccount.parse(storageConnectionString).createCloudTableClient()
-                .getTableReference(this.flowsTable);
+        CloudTable table = StorageClientRegistry.getTable(storageConnectionString, this.flowsTable);
 
         FlowEntity flowEntity = new FlowEntity(flow.getIdentificativoFlusso(), flow.getDataOraFlusso().toString(), idPA);
         TableOperation operation = TableOperation.delete(flowEntity);
         table.execute(operation);
     }
 
+    public FlowDownloadDispatcher getFlowDownloadDispatcher() {
+        return new FlowDownloadDispatcher(downloadConcurrency, stationConcurrency);
+    }
+
     public NodeService getNodeServiceInstance() {
         return new NodeService(this.identificativoIntemediarioPA, this.identificativoStazioneIntermediarioPA,
                 this.paaPassword);
@@ -1,31 +1,114 @@
 package it.gov.pagopa.reporting.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import it.gov.pagopa.reporting.models.PaymentOption;
 import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.AdaptiveLimiter;
+import it.gov.pagopa.reporting.util.CircuitBreaker;
+import it.gov.pagopa.reporting.util.Deadline;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.SneakyThrows;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 
-import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Client;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class GPDService {
 
     // /organizations/:idEC/paymentoptions/:IUV/transfers/{transferid}/report
-    private static final String GPD_PAYMENT_OPTIONS_SERVICE = "/organizations/%s/paymentoptions/%s/transfers/%s/report";
-    private static GPDService instance = null;
-    private final String gpdHost = System.getenv("GPD_HOST");
+    private static final String GPD_PAYMENT_OPTIONS_SERVICE = "/organizations/{idEC}/paymentoptions/{iuv}/transfers/{transferId}/report";
+    // /organizations/:idEC/paymentoptions/:IUV/transfers/report
+    private static final String GPD_PAYMENT_OPTION_TRANSFERS_SERVICE = "/organizations/{idEC}/paymentoptions/{iuv}/transfers/report";
+    // status of a call rejected by the open circuit breaker
+    static final int CIRCUIT_OPEN = -2;
+    // status of a call not made for lack of a free slot under the concurrency limit
+    static final int LIMITER_TIMEOUT = -3;
+    // 4xx statuses that aren't a final outcome of the report, so they are neither skipped nor remembered by the dedupe cache
+    private static final Set<Integer> TRANSIENT_CLIENT_ERRORS = Set.of(408, 409, 423, 429);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static volatile GPDService instance = null;
+
+    // one pooled keep-alive client shared by all the invocations of the worker
+    private final Client client;
+    private final WebTarget reportTarget;
+    private final WebTarget bulkReportTarget;
+    // the bulk report endpoint isn't part of the GPD API: it's called only if enabled
+    private final boolean bulkReportEnabled;
+    // set once GPD answers that the bulk report endpoint isn't implemented, or repeatedly that it doesn't exist
+    private volatile boolean bulkReportUnsupported;
+    private final AtomicInteger bulkReportNotFound = new AtomicInteger();
+    private final int bulkReportMaxNotFound = Integer.parseInt(System.getenv().getOrDefault("GPD_BULK_REPORT_MAX_NOT_FOUND", "3"));
+    // adapts the in-flight calls to the GPD latency and errors
+    private final AdaptiveLimiter limiter;
+    private final long limiterTimeoutMs;
+    // stops the calls while GPD is down
+    private final CircuitBreaker circuitBreaker;
+    // longest time a call can take: limiter wait, pool checkout, connect and read
+    private final long callTimeoutMs;
 
 
     private GPDService() {
+        this(System.getenv("GPD_HOST"),
+                Integer.parseInt(System.getenv().getOrDefault("GPD_POOL_SIZE", "50")),
+                Integer.parseInt(System.getenv().getOrDefault("GPD_CONNECT_TIMEOUT_MS", "5000")),
+                Integer.parseInt(System.getenv().getOrDefault("GPD_READ_TIMEOUT_MS", "10000")),
+                Boolean.parseBoolean(System.getenv("GPD_BULK_REPORT_ENABLED")));
+    }
+
+    GPDService(String gpdHost, int poolSize, int connectTimeoutMs, int readTimeoutMs) {
+        this(gpdHost, poolSize, connectTimeoutMs, readTimeoutMs, false);
+    }
+
+    GPDService(String gpdHost, int poolSize, int connectTimeoutMs, int readTimeoutMs, boolean bulkReportEnabled) {
+        this.bulkReportEnabled = bulkReportEnabled;
+        this.client = new ResteasyClientBuilder()
+                .connectionPoolSize(poolSize)
+                .maxPooledPerRoute(poolSize)
+                .connectionCheckoutTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+        this.reportTarget = client.target(gpdHost + GPD_PAYMENT_OPTIONS_SERVICE);
+        this.bulkReportTarget = client.target(gpdHost + GPD_PAYMENT_OPTION_TRANSFERS_SERVICE);
+        this.limiter = new AdaptiveLimiter(
+                Integer.parseInt(System.getenv().getOrDefault("GPD_LIMIT_INITIAL", String.valueOf(poolSize))),
+                Integer.parseInt(System.getenv().getOrDefault("GPD_LIMIT_MIN", "1")),
+                poolSize,
+                Long.parseLong(System.getenv().getOrDefault("GPD_LIMIT_SLOW_CALL_MS", String.valueOf(readTimeoutMs / 2))));
+        this.limiterTimeoutMs = readTimeoutMs;
+        this.callTimeoutMs = limiterTimeoutMs + 2L * connectTimeoutMs + readTimeoutMs;
+        this.circuitBreaker = new CircuitBreaker(
+                Integer.parseInt(System.getenv().getOrDefault("GPD_CB_FAILURE_THRESHOLD", "20")),
+                Long.parseLong(System.getenv().getOrDefault("GPD_CB_OPEN_MS", "30000")),
+                Integer.parseInt(System.getenv().getOrDefault("GPD_CB_HALF_OPEN_SUCCESSES", "8")));
     }
 
     public static GPDService getInstance() {
         if (instance == null) {
-            instance = new GPDService();
+            synchronized (GPDService.class) {
+                if (instance == null) {
+                    instance = new GPDService();
+                }
+            }
         }
         return instance;
     }
@@ -46,13 +129,177 @@ public class GPDService {
         logger.log(Level.INFO, () -> String.format(
                 "[id=%s][requestId=%s][GPD CALL][setReport] RENDICONTATO iuv : %s , transfer: %s", invocationId, requestId, paymentOption.getOptionId(), paymentOption.getTransferId()));
 
-        int status = callSetReport(idPA, paymentOption, requestId);
-        if (status == 200) {
-            return RetryStep.DONE;
+        int status = limited(() -> callSetReport(idPA, paymentOption, requestId), logger, invocationId);
+        if (status == 200 || status == CIRCUIT_OPEN) {
+            return toRetryStep(status);
         }
         logger.log(Level.WARNING, () -> String.format(
                 "[id=%s][requestId=%s][GPD CALL][setReport] HTTP error status %s for iuv : %s , transfer: %s", invocationId, requestId, status, paymentOption.getOptionId(), paymentOption.getTransferId()));
 
+        return toRetryStep(status);
+    }
+
+    public List<RetryStep> setIuvReport(String idPA, List<PaymentOption> transfers, Logger logger, String invocationId) {
+        return this.setIuvReport(idPA, transfers, logger, invocationId, Deadline.none());
+    }
+
+    /**
+     * set report of all the transfers of an IUV with a single call, if the bulk report is enabled
+     * (GPD_BULK_REPORT_ENABLED), falling back to a call for each transfer when the bulk call fails
+     * or the bulk endpoint isn't available
+     *
+     * @param idPA         fiscal code
+     * @param transfers    payment options of the same IUV
+     * @param logger       for logging
+     * @param invocationId
+     * @param deadline     deadline of the invocation: the transfer calls that can't end before it are deferred
+     * @return the outcome of each transfer, in the same order
+     */
+    public List<RetryStep> setIuvReport(String idPA, List<PaymentOption> transfers, Logger logger, String invocationId,
+                                        Deadline deadline) {
+        List<RetryStep> steps = new ArrayList<>(Collections.nCopies(transfers.size(), null));
+        if (bulkReportEnabled && transfers.size() > 1 && !bulkReportUnsupported) {
+            var requestId = UUID.randomUUID().toString();
+            String iuv = transfers.get(0).getOptionId();
+
+            logger.log(Level.INFO, () -> String.format(
+                    "[id=%s][requestId=%s][GPD CALL][setIuvReport] RENDICONTATO iuv : %s , transfers: %s", invocationId, requestId, iuv, transfers.size()));
+
+            AtomicReference<Map<Integer, Integer>> outcomes = new AtomicReference<>(Map.of());
+            int status = limited(() -> {
+                IuvReportResponse response = callSetIuvReport(idPA, transfers, requestId);
+                outcomes.set(response.getTransferStatuses());
+                return response.getStatus();
+            }, logger, invocationId);
+
+            if (status == CIRCUIT_OPEN || status == LIMITER_TIMEOUT) {
+                // GPD wasn't called, and the calls for each transfer would be stopped as well
+                return Collections.nCopies(transfers.size(), toRetryStep(status));
+            }
+            this.trackBulkSupport(status, logger, invocationId, requestId);
+            if (status == 200) {
+                // the transfers missing from the response get their own call
+                for (int i = 0; i < transfers.size(); i++) {
+                    Integer transferStatus = outcomes.get().get(transfers.get(i).getTransferId());
+                    if (transferStatus != null) {
+                        steps.set(i, toRetryStep(transferStatus));
+                    }
+                }
+            } else {
+                logger.log(Level.WARNING, () -> String.format(
+                        "[id=%s][requestId=%s][GPD CALL][setIuvReport] HTTP error status %s for iuv : %s, using a call for each transfer", invocationId, requestId, status, iuv));
+            }
+        }
+        for (int i = 0; i < transfers.size(); i++) {
+            if (steps.get(i) == null) {
+                steps.set(i, deadline.allows(callTimeoutMs)
+                        ? setReport(idPA, transfers.get(i), logger, invocationId)
+                        : RetryStep.DEFERRED);
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Disable the bulk report once GPD answers that it isn't implemented, or that it doesn't exist
+     * {@code bulkReportMaxNotFound} times in a row.
+     */
+    private void trackBulkSupport(int status, Logger logger, String invocationId, String requestId) {
+        boolean unsupported = status == 405 || status == 501;
+        if (status == 404) {
+            // a missing route of a backend without the bulk endpoint, unless it's a missing IUV
+            unsupported = bulkReportNotFound.incrementAndGet() >= bulkReportMaxNotFound;
+        } else if (!unsupported) {
+            bulkReportNotFound.set(0);
+        }
+        if (unsupported && !bulkReportUnsupported) {
+            bulkReportUnsupported = true;
+            logger.log(Level.WARNING, () -> String.format(
+                    "[id=%s][requestId=%s][GPD CALL][setIuvReport] bulk report not supported (HTTP %s), using a call for each transfer", invocationId, requestId, status));
+        }
+    }
+
+    /**
+     * @return the current max number of in-flight calls to GPD
+     */
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    /**
+     * @return the longest time in millis a report call can take, to start it only if it ends before the deadline
+     */
+    public long getCallTimeoutMillis() {
+        return callTimeoutMs;
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker.getState();
+    }
+
+    private int limited(IntSupplier call, Logger logger, String invocationId) {
+        CircuitBreaker.Permit permit = circuitBreaker.tryAcquire();
+        if (permit == null) {
+            return CIRCUIT_OPEN;
+        }
+        int status = -1;
+        try {
+            status = this.adaptive(call, logger, invocationId);
+            return status;
+        } finally {
+            CircuitBreaker.State before = circuitBreaker.getState();
+            if (status == LIMITER_TIMEOUT) {
+                // queued locally, GPD wasn't called
+                circuitBreaker.onSkipped(permit);
+            } else if (status < 0 || status >= 500) {
+                circuitBreaker.onFailure(permit);
+            } else {
+                circuitBreaker.onSuccess(permit);
+            }
+            CircuitBreaker.State after = circuitBreaker.getState();
+            if (after != before) {
+                logger.log(after == CircuitBreaker.State.OPEN ? Level.SEVERE : Level.INFO,
+                        () -> String.format("[id=%s][GPD CALL] circuit breaker %s -> %s", invocationId, before, after));
+            }
+        }
+    }
+
+    private int adaptive(IntSupplier call, Logger logger, String invocationId) {
+        try {
+            if (!limiter.acquire(limiterTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.log(Level.WARNING, () -> String.format(
+                        "[id=%s][GPD CALL] no free slot under the concurrency limit %s", invocationId, limiter.getLimit()));
+                return LIMITER_TIMEOUT;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return LIMITER_TIMEOUT;
+        }
+        long start = System.nanoTime();
+        int status = -1;
+        try {
+            status = call.getAsInt();
+            return status;
+        } finally {
+            int before = limiter.getLimit();
+            int after = limiter.release(System.nanoTime() - start, status);
+            if (after != before) {
+                logger.log(Level.INFO, () -> String.format("[id=%s][GPD CALL] concurrency limit %s -> %s", invocationId, before, after));
+            }
+        }
+    }
+
+    private static RetryStep toRetryStep(int status) {
+        if (status == 200) {
+            return RetryStep.DONE;
+        }
+        if (status == CIRCUIT_OPEN) {
+            return RetryStep.DEFERRED;
+        }
+        if (TRANSIENT_CLIENT_ERRORS.contains(status)) {
+            // timeout, conflict, locked or throttled: the same call may succeed later
+            return RetryStep.RETRY;
+        }
         if (status >= 400 && status < 500) {
             // skip retry if the status is 4xx
             return RetryStep.ERROR;
@@ -62,16 +309,70 @@ public class GPDService {
     }
 
     int callSetReport(String idPA, PaymentOption paymentOption, String requestId) {
-        try {
-            Response response = ClientBuilder.newClient()
-                    .target(gpdHost + String.format(GPD_PAYMENT_OPTIONS_SERVICE, idPA, paymentOption.getOptionId(), paymentOption.getTransferId()))
-                    .request()
-                    .header("X-Request-ID", requestId)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .post(Entity.text(""));
+        try (Response response = reportTarget
+                .resolveTemplate("idEC", idPA)
+                .resolveTemplate("iuv", paymentOption.getOptionId())
+                .resolveTemplate("transferId", paymentOption.getTransferId())
+                .request()
+                .header("X-Request-ID", requestId)
+                .accept(MediaType.APPLICATION_JSON)
+                .post(Entity.text(""))) {
+            // closing the response gives the connection back to the pool
             return response.getStatus();
         } catch (Exception e) {
             return -1;
         }
     }
+
+    IuvReportResponse callSetIuvReport(String idPA, List<PaymentOption> transfers, String requestId) {
+        List<Integer> transferIds = new ArrayList<>(transfers.size());
+        transfers.forEach(transfer -> transferIds.add(transfer.getTransferId()));
+        try (Response response = bulkReportTarget
+                .resolveTemplate("idEC", idPA)
+                .resolveTemplate("iuv", transfers.get(0).getOptionId())
+                .request()
+                .header("X-Request-ID", requestId)
+                .accept(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Map.of("transferIds", transferIds)))) {
+            int status = response.getStatus();
+            return new IuvReportResponse(status, status == 200 ? parseTransferStatuses(response.readEntity(String.class)) : Map.of());
+        } catch (Exception e) {
+            return new IuvReportResponse(-1, Map.of());
+        }
+    }
+
+    /**
+     * @param body outcome of each transfer, e.g. {@code [{"transferId":1,"status":200},{"transferId":2,"status":409}]}
+     * @return the status of each transfer, empty if the body can't be read
+     */
+    static Map<Integer, Integer> parseTransferStatuses(String body) {
+        Map<Integer, Integer> statuses = new HashMap<>();
+        try {
+            JsonNode results = MAPPER.readTree(body == null ? "" : body);
+            if (results != null && results.isArray()) {
+                for (JsonNode result : results) {
+                    if (result.hasNonNull("transferId") && result.hasNonNull("status")) {
+                        statuses.put(result.get("transferId").asInt(), result.get("status").asInt());
+                    }
+                }
+            }
+        } catch (JsonProcessingException e) {
+            // no outcome: each transfer gets its own call
+        }
+        return statuses;
+    }
+
+    void close() {
+        client.close();
+    }
+
+    /**
+     * Response of a bulk report: its status and, if 200, the status of each transfer by transfer id.
+     */
+    @Getter
+    @AllArgsConstructor
+    static class IuvReportResponse {
+        private final int status;
+        private final Map<Integer, Integer> transferStatuses;
+    }
 }
@@ -0,0 +1,200 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.Deadline;
+import it.gov.pagopa.reporting.util.HashedTimingWheel;
+import it.gov.pagopa.reporting.util.WorkerPools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Retries the options failed with {@link RetryStep#RETRY} inside the same invocation, a bounded number of times
+ * and with short doubling delays, before they are sent back to the queue.
+ * <p>
+ * Delays are kept by a process-wide {@link HashedTimingWheel}, and the retries run on a shared pool, at most
+ * {@code concurrency} at the same time for a message, as its first reports. The retries wait until the deadline
+ * at most: the options whose retry isn't over by then are left to retry.
+ */
+public class InProcessRetrier {
+
+    private static final HashedTimingWheel WHEEL = new HashedTimingWheel("gpd-retry-wheel", 10, 512);
+    private static final ExecutorService EXECUTOR = WorkerPools.fixed("gpd-retry", "GPD_RETRY_THREADS", 8);
+
+    private final int maxAttempts;
+    private final long delayMillis;
+    private final int concurrency;
+
+    public InProcessRetrier(int maxAttempts, long delayMillis, int concurrency) {
+        this.maxAttempts = Math.max(maxAttempts, 0);
+        this.delayMillis = Math.max(delayMillis, 0);
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    /**
+     * Retry the options to retry, storing the new outcome in their retry action.
+     *
+     * @param failed   options not reported
+     * @param report   the report call of a single option
+     * @param deadline deadline of the invocation
+     * @return the options still not reported with {@link RetryStep#DONE}, in their original order
+     */
+    public List<PaymentOption> retry(List<PaymentOption> failed, Function<PaymentOption, RetryStep> report, Deadline deadline) {
+        List<List<PaymentOption>> units = new ArrayList<>();
+        for (PaymentOption option : failed) {
+            if (RetryStep.RETRY.name().equals(option.getRetryAction())) {
+                units.add(List.of(option));
+            }
+        }
+        return this.run(failed, units, option -> List.of(report.apply(option.get(0))), deadline);
+    }
+
+    /**
+     * Retry the options to retry grouped by IUV, with a single report call for the transfers of an IUV to retry.
+     *
+     * @param failed   options not reported
+     * @param report   the report call of the transfers of an IUV, returning the outcome of each transfer
+     * @param deadline deadline of the invocation
+     * @return the options still not reported with {@link RetryStep#DONE}, in their original order
+     * @see #retry(List, Function, Deadline)
+     */
+    public List<PaymentOption> retryByIuv(List<PaymentOption> failed, Function<List<PaymentOption>, List<RetryStep>> report,
+                                          Deadline deadline) {
+        Map<String, List<PaymentOption>> byIuv = new LinkedHashMap<>();
+        for (PaymentOption option : failed) {
+            if (RetryStep.RETRY.name().equals(option.getRetryAction())) {
+                byIuv.computeIfAbsent(option.getOptionId(), iuv -> new ArrayList<>()).add(option);
+            }
+        }
+        return this.run(failed, new ArrayList<>(byIuv.values()), report, deadline);
+    }
+
+    private List<PaymentOption> run(List<PaymentOption> failed, List<List<PaymentOption>> units,
+                                    Function<List<PaymentOption>, List<RetryStep>> report, Deadline deadline) {
+        if (maxAttempts == 0 || units.isEmpty()) {
+            return failed;
+        }
+
+        Round round = new Round(units.size(), report, deadline);
+        units.forEach(unit -> this.schedule(round, unit, 1));
+        try {
+            round.completed.await(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the retries still pending or running don't change their options anymore
+        round.close();
+
+        List<PaymentOption> stillFailed = new ArrayList<>();
+        for (PaymentOption option : failed) {
+            if (!RetryStep.DONE.name().equals(option.getRetryAction())) {
+                stillFailed.add(option);
+            }
+        }
+        return stillFailed;
+    }
+
+    private void schedule(Round round, List<PaymentOption> unit, int attempt) {
+        long delay = delayMillis << (attempt - 1);
+        if (!round.deadline.allows(delay)) {
+            // out of time: the options stay to retry
+            round.completed.countDown();
+            return;
+        }
+        WHEEL.schedule(() -> round.submit(() -> this.attempt(round, unit, attempt)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt(Round round, List<PaymentOption> unit, int attempt) {
+        if (round.isClosed()) {
+            return;
+        }
+        List<RetryStep> steps;
+        try {
+            steps = round.report.apply(unit);
+        } catch (RuntimeException e) {
+            steps = Collections.nCopies(unit.size(), RetryStep.RETRY);
+        }
+        List<PaymentOption> again = new ArrayList<>();
+        synchronized (round) {
+            if (round.closed) {
+                return;
+            }
+            for (int i = 0; i < unit.size(); i++) {
+                unit.get(i).setRetryAction(steps.get(i).name());
+                if (RetryStep.RETRY.equals(steps.get(i))) {
+                    again.add(unit.get(i));
+                }
+            }
+        }
+        if (!again.isEmpty() && attempt < maxAttempts) {
+            this.schedule(round, again, attempt + 1);
+        } else {
+            round.completed.countDown();
+        }
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Retries of a message: at most {@code concurrency} attempts run at the same time, the others wait in order.
+     */
+    private final class Round {
+        private final CountDownLatch completed;
+        private final Function<List<PaymentOption>, List<RetryStep>> report;
+        private final Deadline deadline;
+        private final Semaphore permits = new Semaphore(concurrency);
+        private final Queue<Runnable> ready = new ConcurrentLinkedQueue<>();
+        // guarded by this
+        private boolean closed;
+
+        private Round(int units, Function<List<PaymentOption>, List<RetryStep>> report, Deadline deadline) {
+            this.completed = new CountDownLatch(units);
+            this.report = report;
+            this.deadline = deadline;
+        }
+
+        private void submit(Runnable attempt) {
+            ready.add(attempt);
+            this.drain();
+        }
+
+        private void drain() {
+            while (!ready.isEmpty() && permits.tryAcquire()) {
+                Runnable attempt = ready.poll();
+                if (attempt == null) {
+                    permits.release();
+                    return;
+                }
+                EXECUTOR.execute(() -> {
+                    try {
+                        attempt.run();
+                    } finally {
+                        permits.release();
+                        this.drain();
+                    }
+                });
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private synchronized void close() {
+            closed = true;
+        }
+    }
+}
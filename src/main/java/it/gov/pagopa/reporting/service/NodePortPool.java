@@ -0,0 +1,150 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.exception.NodePortUnavailableException;
+import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPT;
+import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPTservice;
+import it.gov.pagopa.reporting.util.Deadline;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pool of the Nodo ports, keyed by broker and station.
+ * <p>
+ * The WSDL is parsed once per worker, when the shared pool is first used; afterwards a port costs a proxy creation,
+ * and is reused by the next calls of the same station. A port is used by one call at a time, since its request
+ * context isn't thread-safe: at most {@code maxPortsPerKey} ports of a station are borrowed at the same time,
+ * the next calls wait for one to be released until the deadline, and at most {@code maxIdlePerKey} idle ports
+ * are kept per station, the others are dropped when released.
+ */
+public class NodePortPool {
+
+    private static final int MAX_IDLE_PER_KEY = Integer.parseInt(System.getenv().getOrDefault("NODO_PORT_POOL_SIZE", "8"));
+    private static final int MAX_PORTS_PER_KEY = Integer.parseInt(System.getenv().getOrDefault("NODO_PORT_POOL_MAX", "16"));
+
+    private final int maxIdlePerKey;
+    private final int maxPortsPerKey;
+    private final Supplier<PagamentiTelematiciRPT> portFactory;
+    private final Map<String, Ports> ports = new ConcurrentHashMap<>();
+    private final AtomicLong created = new AtomicLong();
+
+    public NodePortPool(int maxIdlePerKey, Supplier<PagamentiTelematiciRPT> portFactory) {
+        this(maxIdlePerKey, Integer.MAX_VALUE, portFactory);
+    }
+
+    public NodePortPool(int maxIdlePerKey, int maxPortsPerKey, Supplier<PagamentiTelematiciRPT> portFactory) {
+        this.maxIdlePerKey = Math.max(maxIdlePerKey, 0);
+        this.maxPortsPerKey = Math.max(maxPortsPerKey, 1);
+        this.portFactory = portFactory;
+    }
+
+    /**
+     * @return the pool shared by the invocations of the worker
+     */
+    public static NodePortPool shared() {
+        return Shared.POOL;
+    }
+
+    /**
+     * @return an idle port of the station, or a new one if there is none
+     * @see #borrow(String, String, Deadline)
+     */
+    public PagamentiTelematiciRPT borrow(String idBroker, String idStation) {
+        return this.borrow(idBroker, idStation, Deadline.none());
+    }
+
+    /**
+     * @param deadline deadline of the invocation, until when a port of the station is waited for
+     * @return an idle port of the station, or a new one if there is none
+     * @throws NodePortUnavailableException if all the ports of the station are still borrowed at the deadline
+     */
+    public PagamentiTelematiciRPT borrow(String idBroker, String idStation, Deadline deadline) {
+        String key = key(idBroker, idStation);
+        Ports station = ports.computeIfAbsent(key, k -> new Ports(maxPortsPerKey));
+        if (!station.acquire(deadline)) {
+            throw new NodePortUnavailableException("No Nodo port of " + key + " free before the deadline");
+        }
+        PagamentiTelematiciRPT port = station.poll();
+        if (port == null) {
+            try {
+                port = portFactory.get();
+            } catch (RuntimeException e) {
+                station.permits.release();
+                throw e;
+            }
+            created.incrementAndGet();
+        }
+        return port;
+    }
+
+    /**
+     * Give back a borrowed port, to be reused by the next call of the station.
+     */
+    public void release(String idBroker, String idStation, PagamentiTelematiciRPT port) {
+        Ports station = ports.get(key(idBroker, idStation));
+        station.offer(port, maxIdlePerKey);
+        station.permits.release();
+    }
+
+    /**
+     * @return the ports created so far
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+    private static String key(String idBroker, String idStation) {
+        return idBroker + "|" + idStation;
+    }
+
+    private static class Ports {
+        // ports of the station that can still be borrowed
+        private final Semaphore permits;
+        private final Deque<PagamentiTelematiciRPT> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger idleSize = new AtomicInteger();
+
+        private Ports(int maxPorts) {
+            this.permits = new Semaphore(maxPorts);
+        }
+
+        private boolean acquire(Deadline deadline) {
+            try {
+                return permits.tryAcquire(Math.max(deadline.remainingMillis(), 0), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        private PagamentiTelematiciRPT poll() {
+            PagamentiTelematiciRPT port = idle.pollFirst();
+            if (port != null) {
+                idleSize.decrementAndGet();
+            }
+            return port;
+        }
+
+        private void offer(PagamentiTelematiciRPT port, int maxSize) {
+            if (idleSize.incrementAndGet() > maxSize) {
+                idleSize.decrementAndGet();
+                return;
+            }
+            idle.offerFirst(port);
+        }
+    }
+
+    // lazy: the WSDL is parsed by the first invocation calling the Nodo
+    private static class Shared {
+        private static final PagamentiTelematiciRPTservice SERVICE =
+                new PagamentiTelematiciRPTservice(PagamentiTelematiciRPTservice.WSDL_LOCATION);
+        private static final NodePortPool POOL = new NodePortPool(MAX_IDLE_PER_KEY, MAX_PORTS_PER_KEY,
+                SERVICE::getPagamentiTelematiciRPTPort);
+    }
+}
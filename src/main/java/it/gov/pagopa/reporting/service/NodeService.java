@@ -1,65 +1,80 @@
 package it.gov.pagopa.reporting.service;
 
+import com.sun.xml.ws.client.BindingProviderProperties;
 import com.sun.xml.ws.client.ClientTransportException;
+import it.gov.pagopa.reporting.exception.NodePortUnavailableException;
+import it.gov.pagopa.reporting.models.NodoChiediFlussoRendicontazioneResult;
 import it.gov.pagopa.reporting.servicewsdl.FaultBean;
 import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPT;
-import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPTservice;
+import it.gov.pagopa.reporting.util.Deadline;
 
 import javax.activation.DataHandler;
+import javax.xml.ws.BindingProvider;
 import javax.xml.ws.Holder;
-import java.net.URL;
+import java.util.Map;
 
+/**
+ * Nodo client of a station. Thread-safe: each call borrows a port of the station from the pool,
+ * and returns its outcome as a value.
+ */
 public class NodeService {
 
-    private static final URL WSD_URL = PagamentiTelematiciRPTservice.WSDL_LOCATION;
-
     private final String identificativoIntemediarioPA;
     private final String identificativoStazioneIntermediarioPA;
     private final String paaPassword;
-    private final PagamentiTelematiciRPTservice ss;
-    private final PagamentiTelematiciRPT port;
-    private Holder<FaultBean> nodoChiediFlussoRendicontazioneFault;
-    private Holder<DataHandler> reportingXml;
+    private final NodePortPool portPool;
+    private final int connectTimeoutMs = Integer.parseInt(System.getenv().getOrDefault("NODO_CONNECT_TIMEOUT_MS", "5000"));
+    private final int requestTimeoutMs = Integer.parseInt(System.getenv().getOrDefault("NODO_REQUEST_TIMEOUT_MS", "30000"));
 
     public NodeService(String identificativoIntemediarioPA, String identificativoStazioneIntermediarioPA,
                        String paaPassword) {
+        this(identificativoIntemediarioPA, identificativoStazioneIntermediarioPA, paaPassword, NodePortPool.shared());
+    }
+
+    NodeService(String identificativoIntemediarioPA, String identificativoStazioneIntermediarioPA,
+                String paaPassword, NodePortPool portPool) {
 
         this.identificativoIntemediarioPA = identificativoIntemediarioPA;
         this.identificativoStazioneIntermediarioPA = identificativoStazioneIntermediarioPA;
         this.paaPassword = paaPassword;
-        this.ss = new PagamentiTelematiciRPTservice(WSD_URL);
-        this.port = ss.getPagamentiTelematiciRPTPort();
+        this.portPool = portPool;
     }
 
-    public FaultBean getNodoChiediFlussoRendicontazioneFault() {
-
-        return nodoChiediFlussoRendicontazioneFault != null ? nodoChiediFlussoRendicontazioneFault.value : null;
+    /**
+     * @return the longest time in millis a call can take
+     */
+    public long getCallTimeoutMillis() {
+        return (long) connectTimeoutMs + requestTimeoutMs;
     }
 
-    public void setNodoChiediFlussoRendicontazioneFault(Holder<FaultBean> fault) {
-        this.nodoChiediFlussoRendicontazioneFault = fault;
-    }
-
-    public void setNodoChiediFlussoRendicontazioneXmlReporting(Holder<DataHandler> reportingXml) {
-
-        this.reportingXml = reportingXml;
+    public NodoChiediFlussoRendicontazioneResult callNodoChiediFlussoRendicontazione(String idPa, String idFlow) throws ClientTransportException {
+        return this.callNodoChiediFlussoRendicontazione(idPa, idFlow, Deadline.none());
     }
 
-    public DataHandler getNodoChiediElencoFlussiRendicontazioneXmlReporting() {
-
-        return this.reportingXml != null ? this.reportingXml.value : null;
-    }
-
-    public void callNodoChiediFlussoRendicontazione(String idPa, String idFlow) throws ClientTransportException {
-
-        Holder<FaultBean> fault = new Holder<>();
-        Holder<DataHandler> result = new Holder<>();
-
-        port.nodoChiediFlussoRendicontazione(this.identificativoIntemediarioPA,
-                this.identificativoStazioneIntermediarioPA, this.paaPassword, idPa, null, idFlow, fault, result);
-
-        setNodoChiediFlussoRendicontazioneFault(fault);
-        setNodoChiediFlussoRendicontazioneXmlReporting(result);
+    /**
+     * @param deadline deadline of the invocation: the call waits for a port and times out at the latest when it expires
+     * @throws NodePortUnavailableException if no port of the station is free before the deadline
+     */
+    public NodoChiediFlussoRendicontazioneResult callNodoChiediFlussoRendicontazione(String idPa, String idFlow, Deadline deadline) throws ClientTransportException {
+
+        PagamentiTelematiciRPT port = portPool.borrow(this.identificativoIntemediarioPA, this.identificativoStazioneIntermediarioPA, deadline);
+        try {
+            if (port instanceof BindingProvider) {
+                Map<String, Object> requestContext = ((BindingProvider) port).getRequestContext();
+                requestContext.put(BindingProviderProperties.CONNECT_TIMEOUT, deadline.timeoutMillis(connectTimeoutMs));
+                requestContext.put(BindingProviderProperties.REQUEST_TIMEOUT, deadline.timeoutMillis(requestTimeoutMs));
+            }
+
+            Holder<FaultBean> fault = new Holder<>();
+            Holder<DataHandler> result = new Holder<>();
+
+            port.nodoChiediFlussoRendicontazione(this.identificativoIntemediarioPA,
+                    this.identificativoStazioneIntermediarioPA, this.paaPassword, idPa, null, idFlow, fault, result);
+
+            return new NodoChiediFlussoRendicontazioneResult(fault.value, result.value);
+        } finally {
+            portPool.release(this.identificativoIntemediarioPA, this.identificativoStazioneIntermediarioPA, port);
+        }
     }
 
 }
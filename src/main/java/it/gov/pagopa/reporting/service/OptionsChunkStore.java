@@ -0,0 +1,123 @@
+package it.gov.pagopa.reporting.service;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobStorageException;
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.StorageClientRegistry;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Claim-check store for payment options: a chunk of options is written to a blob,
+ * and queue messages only carry the blob name and the byte range of their options.
+ * <p>
+ * A chunk is a UTF-8 text with one {@code iuv;transferId} line for each option.
+ * <p>
+ * Chunks are not deleted by the function: a range can be read again while its message is retried by the runtime,
+ * and the retried options travel in the message itself. The container needs a lifecycle management rule deleting
+ * the blobs older than the queue retention (QUEUE_RETENTION_SEC).
+ */
+public class OptionsChunkStore {
+
+    private static final char SEPARATOR = ';';
+
+    private final String storageConnectionString;
+    private final String container;
+
+    public OptionsChunkStore(String storageConnectionString, String container) {
+        this.storageConnectionString = storageConnectionString;
+        this.container = container;
+    }
+
+    /**
+     * Upload the options in a single blob.
+     *
+     * @param blobName  name of the chunk blob
+     * @param options   options to store
+     * @param rangeSize max number of options for each returned range
+     * @return the byte ranges of the blob, each one holding at most {@code rangeSize} options
+     */
+    public List<Range> write(String blobName, List<PaymentOption> options, int rangeSize) {
+        Chunk chunk = encode(options, rangeSize);
+        this.getBlobClient(blobName).upload(new ByteArrayInputStream(chunk.getData()), chunk.getData().length, true);
+        return chunk.getRanges();
+    }
+
+    /**
+     * Stream the options of a range of the blob.
+     *
+     * @param blobName name of the chunk blob
+     * @param offset   first byte of the range
+     * @param length   number of bytes of the range
+     * @return the options of the range
+     * @throws IOException if the blob is missing or can't be read
+     */
+    public List<PaymentOption> read(String blobName, long offset, long length) throws IOException {
+        try (InputStream is = this.getBlobClient(blobName).openInputStream(new BlobRange(offset, length), null)) {
+            return decode(is);
+        } catch (BlobStorageException e) {
+            // missing, throttled or transient: the storage client doesn't throw an IOException
+            throw new IOException("unable to read " + blobName + ": " + e.getMessage(), e);
+        }
+    }
+
+    protected BlobClient getBlobClient(String blobName) {
+        StorageClientRegistry.ensureBlobContainer(this.storageConnectionString, this.container);
+        return StorageClientRegistry.getBlobContainerClient(this.storageConnectionString, this.container).getBlobClient(blobName);
+    }
+
+    static Chunk encode(List<PaymentOption> options, int rangeSize) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream(options.size() * 24);
+        List<Range> ranges = new ArrayList<>();
+        long rangeStart = 0;
+        for (int i = 0; i < options.size(); i++) {
+            PaymentOption option = options.get(i);
+            byte[] line = (option.getOptionId() + SEPARATOR + option.getTransferId() + "\n").getBytes(StandardCharsets.UTF_8);
+            data.write(line, 0, line.length);
+            if ((i + 1) % rangeSize == 0 || i == options.size() - 1) {
+                ranges.add(new Range(rangeStart, data.size() - rangeStart));
+                rangeStart = data.size();
+            }
+        }
+        return new Chunk(data.toByteArray(), ranges);
+    }
+
+    static List<PaymentOption> decode(InputStream is) throws IOException {
+        List<PaymentOption> options = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int separator = line.lastIndexOf(SEPARATOR);
+            if (separator > 0) {
+                options.add(new PaymentOption(line.substring(0, separator), Integer.parseInt(line.substring(separator + 1)), RetryStep.NONE.name()));
+            }
+        }
+        return options;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Range {
+        private final long offset;
+        private final long length;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    static class Chunk {
+        private final byte[] data;
+        private final List<Range> ranges;
+    }
+}
@@ -0,0 +1,150 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.microsoft.azure.storage.queue.QueueRequestOptions;
+import it.gov.pagopa.reporting.util.Deadline;
+import it.gov.pagopa.reporting.util.WorkerPools;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Enqueues messages asynchronously, keeping at most {@code maxInFlight} sends running at the same time
+ * and collecting the messages that couldn't be sent.
+ * <p>
+ * The waits last until the deadline at most: the messages not sent by then are reported as failed, either because
+ * they didn't get a slot or because they were still being sent. Queue sends are themselves bounded by the deadline,
+ * so that a send still running when the report is made frees its pool thread soon after.
+ */
+public class OptionsEnqueuer {
+
+    private static final String OUT_OF_TIME = "not sent before the deadline";
+    private static final String STILL_SENDING = "still being sent at the deadline";
+    private static final ExecutorService EXECUTOR = WorkerPools.fixed("options-enqueuer", "OPTIONS_ENQUEUE_THREADS", 16);
+
+    private final Sender sender;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Deadline deadline;
+    // messages being sent, by batch
+    private final Map<Integer, String> sending = new ConcurrentHashMap<>();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final ConcurrentLinkedQueue<FailedBatch> failed = new ConcurrentLinkedQueue<>();
+
+    public OptionsEnqueuer(CloudQueue queue, int maxInFlight, Deadline deadline) {
+        this(message -> queue.addMessage(new CloudQueueMessage(message), 0, 0, requestOptions(deadline), null),
+                maxInFlight, deadline);
+    }
+
+    public OptionsEnqueuer(Sender sender, int maxInFlight) {
+        this(sender, maxInFlight, Deadline.none());
+    }
+
+    public OptionsEnqueuer(Sender sender, int maxInFlight, Deadline deadline) {
+        this.sender = sender;
+        this.maxInFlight = Math.max(maxInFlight, 1);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.deadline = deadline;
+    }
+
+    /**
+     * Start sending the message, waiting only if {@code maxInFlight} sends are already running.
+     *
+     * @param batch   index of the batch in the flow, used to report failures
+     * @param message the message to enqueue
+     */
+    public void submit(int batch, String message) {
+        try {
+            if (!inFlight.tryAcquire(deadline.remainingMillis(), TimeUnit.MILLISECONDS)) {
+                failed.add(new FailedBatch(batch, message, OUT_OF_TIME));
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.add(new FailedBatch(batch, message, e.toString()));
+            return;
+        }
+        sending.put(batch, message);
+        try {
+            EXECUTOR.execute(() -> {
+                try {
+                    sender.send(message);
+                    sent.incrementAndGet();
+                } catch (Exception e) {
+                    failed.add(new FailedBatch(batch, message, e.getMessage()));
+                } finally {
+                    sending.remove(batch);
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            sending.remove(batch);
+            inFlight.release();
+            failed.add(new FailedBatch(batch, message, e.getMessage()));
+        }
+    }
+
+    /**
+     * Wait for the running sends to complete, until the deadline at most.
+     *
+     * @return the outcome of all the submitted messages, the ones still being sent counted as failed
+     */
+    public EnqueueReport awaitCompletion() {
+        try {
+            if (inFlight.tryAcquire(maxInFlight, deadline.remainingMillis(), TimeUnit.MILLISECONDS)) {
+                inFlight.release(maxInFlight);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // a send completing meanwhile is reported once, as failed
+        Map<Integer, String> late = new TreeMap<>(sending);
+        List<FailedBatch> failures = new ArrayList<>(failed);
+        failures.forEach(failure -> late.remove(failure.getBatch()));
+        late.forEach((batch, message) -> failures.add(new FailedBatch(batch, message, STILL_SENDING)));
+        return new EnqueueReport(sent.get(), failures);
+    }
+
+    /**
+     * @return options ending the send, retries included, by the deadline
+     */
+    static QueueRequestOptions requestOptions(Deadline deadline) {
+        QueueRequestOptions options = new QueueRequestOptions();
+        options.setMaximumExecutionTimeInMs(deadline.timeoutMillis(Integer.MAX_VALUE));
+        return options;
+    }
+
+    /**
+     * Blocking send of a single message to the queue.
+     */
+    @FunctionalInterface
+    public interface Sender {
+        void send(String message) throws Exception;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class EnqueueReport {
+        private final int sent;
+        private final List<FailedBatch> failed;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class FailedBatch {
+        private final int batch;
+        private final String message;
+        private final String error;
+    }
+}
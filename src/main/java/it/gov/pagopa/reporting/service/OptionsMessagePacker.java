@@ -0,0 +1,74 @@
+package it.gov.pagopa.reporting.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.gov.pagopa.reporting.models.OptionsMessage;
+import it.gov.pagopa.reporting.models.PaymentOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits payment options into batches whose serialized {@link OptionsMessage} fits a byte budget.
+ * <p>
+ * Azure Queue messages are limited to 64 KB after the base64 encoding applied to the message body,
+ * so the JSON of a message can't exceed 48 KB: any larger budget is capped to that value.
+ */
+public class OptionsMessagePacker {
+
+    // 64 KB queue limit, base64 encodes 3 bytes in 4
+    public static final int MAX_MESSAGE_BYTES = 64 * 1024 / 4 * 3;
+    public static final int DEFAULT_MESSAGE_BYTES = 47 * 1024;
+    public static final int DEFAULT_OPTIONS_FOR_MESSAGE = 100;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final int maxBytes;
+    private final int maxOptions;
+
+    public OptionsMessagePacker(int maxBytes, int maxOptions) {
+        this.maxBytes = Math.min(maxBytes, MAX_MESSAGE_BYTES);
+        this.maxOptions = Math.max(maxOptions, 1);
+    }
+
+    /**
+     * @param template message whose fields, except the payment options, are shared by all the batches
+     * @param options  options to split
+     * @return consecutive views of {@code options}, each one fitting the byte budget and the max options per message
+     */
+    public List<List<PaymentOption>> pack(OptionsMessage template, List<PaymentOption> options) throws JsonProcessingException {
+        if (options.isEmpty()) {
+            return Collections.emptyList();
+        }
+        OptionsMessage empty = new OptionsMessage(template.getIdPA(), template.getIdFlow(), template.getFlowDate(),
+                Collections.emptyList(), template.getRetryCount());
+        int headerBytes = MAPPER.writeValueAsBytes(empty).length;
+
+        List<List<PaymentOption>> batches = new ArrayList<>();
+        int from = 0;
+        int bytes = headerBytes;
+        for (int i = 0; i < options.size(); i++) {
+            // one comma between the elements of the array
+            int optionBytes = MAPPER.writeValueAsBytes(options.get(i)).length + (i > from ? 1 : 0);
+            boolean full = i - from == maxOptions || bytes + optionBytes > maxBytes;
+            if (full && i > from) {
+                batches.add(options.subList(from, i));
+                from = i;
+                bytes = headerBytes;
+                optionBytes--;
+            }
+            bytes += optionBytes;
+        }
+        batches.add(options.subList(from, options.size()));
+        return batches;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxOptions() {
+        return maxOptions;
+    }
+}
@@ -2,19 +2,20 @@ package it.gov.pagopa.reporting.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.Lists;
-import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.queue.CloudQueue;
 import com.microsoft.azure.storage.queue.CloudQueueMessage;
 import it.gov.pagopa.reporting.models.OptionsMessage;
 import it.gov.pagopa.reporting.models.PaymentOption;
-import it.gov.pagopa.reporting.util.AzuriteStorageUtil;
+import it.gov.pagopa.reporting.util.Deadline;
+import it.gov.pagopa.reporting.util.StorageClientRegistry;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,91 +24,240 @@ public class OptionsService {
     private final String storageConnectionString;
     private final String optionsQueue;
     private final Logger logger;
-    private final int optionsForMessage = 2;
+    // bounds the wait for the enqueued messages
+    private final Deadline deadline;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     private final String delay = System.getenv("DELAY_ATTEMPS");
     private final String timeToLiveInSeconds = System.getenv("QUEUE_RETENTION_SEC");
+    private final OptionsMessagePacker packer = new OptionsMessagePacker(
+            Integer.parseInt(System.getenv().getOrDefault("OPTIONS_MESSAGE_MAX_BYTES", String.valueOf(OptionsMessagePacker.DEFAULT_MESSAGE_BYTES))),
+            Integer.parseInt(System.getenv().getOrDefault("OPTIONS_MESSAGE_MAX_OPTIONS", String.valueOf(OptionsMessagePacker.DEFAULT_OPTIONS_FOR_MESSAGE))));
+    private final int enqueueConcurrency = Integer.parseInt(System.getenv().getOrDefault("OPTIONS_ENQUEUE_CONCURRENCY", "8"));
+
+    // claim-check
+    private final boolean claimCheckEnabled = Boolean.parseBoolean(System.getenv("OPTIONS_CLAIM_CHECK_ENABLED"));
+    private final int claimCheckThreshold = Integer.parseInt(System.getenv().getOrDefault("OPTIONS_CLAIM_CHECK_THRESHOLD", "1000"));
+    private final int claimCheckRange = Integer.parseInt(System.getenv().getOrDefault("OPTIONS_CLAIM_CHECK_RANGE", "1000"));
+    private final String optionsChunkBlob = System.getenv().getOrDefault("OPTIONS_CHUNK_BLOB", "optionschunks");
 
 
     public OptionsService(String storageConnectionString, String optionsQueue, Logger logger) {
+        this(storageConnectionString, optionsQueue, logger, Deadline.forInvocation());
+    }
+
+    /**
+     * @param deadline deadline of the invocation using the service
+     */
+    public OptionsService(String storageConnectionString, String optionsQueue, Logger logger, Deadline deadline) {
 
         this.storageConnectionString = storageConnectionString;
         this.optionsQueue = optionsQueue;
         this.logger = logger;
+        this.deadline = deadline;
     }
 
     public void optionsProcessing(List<PaymentOption> options, String idPA, String idFlow, String dataFlow) throws JsonProcessingException {
 
-        // try to create blob container
-        AzuriteStorageUtil azuriteStorageUtil = new AzuriteStorageUtil(storageConnectionString, null, optionsQueue, null);
-        try {
-            azuriteStorageUtil.createQueue();
-        } catch (URISyntaxException | InvalidKeyException | StorageException e) {
-            this.logger.severe(String.format("[AzureStorage] Problem to create queue: %s", e.getMessage()));
-        }
-
         // step 11
 
-        this.logger.log(Level.INFO, "[OptionsService] START options queue ");
+        OptionsBatchSink sink = this.openBatchSink(idPA, idFlow, dataFlow);
+        try (sink) {
+            sink.send(options);
+        }
+        int messages = sink.getSent();
 
-        List<List<PaymentOption>> partitionOptions = Lists.partition(options, optionsForMessage);
+        this.logger.log(Level.INFO, () -> "[OptionsService] " + options.size() + " flows in " + messages
+                + " messages of max " + packer.getMaxOptions() + " options and " + packer.getMaxBytes() + " bytes");
+    }
 
-        OptionsMessage optionsMsg;
-        List<String> messages = new ArrayList<>();
-        for (List<PaymentOption> partitionOption : partitionOptions) {
-            optionsMsg = new OptionsMessage();
-            optionsMsg.setFlowDate(dataFlow);
-            optionsMsg.setIdPA(idPA);
-            optionsMsg.setIdFlow(idFlow);
-            optionsMsg.setPaymentOptions(partitionOption);
-            optionsMsg.setRetryCount(0);
-            messages.add(new ObjectMapper().writeValueAsString(optionsMsg));
-        }
+    /**
+     * Open a sink that serializes and enqueues each batch of options as soon as it is received,
+     * so that a flow can be enqueued while it is still being parsed.
+     *
+     * @param idPA     fiscal code
+     * @param idFlow   flow identifier
+     * @param dataFlow flow date
+     * @return the sink, to be closed when the flow is over
+     * @throws IllegalStateException if the options queue can't be created or reached
+     */
+    public OptionsBatchSink openBatchSink(String idPA, String idFlow, String dataFlow) {
 
-        this.logger.log(Level.INFO, () -> "[OptionsService] " + options.size() + " flows in " + partitionOptions.size()
-                + "  batch of size " + optionsForMessage);
+        this.logger.log(Level.INFO, "[OptionsService] START options queue ");
 
+        CloudQueue queue;
         try {
-            CloudQueue queue = CloudStorageAccount.parse(storageConnectionString).createCloudQueueClient()
-                    .getQueueReference(this.optionsQueue);
-            queue.createIfNotExists();
-            this.logger.log(Level.INFO, () -> "[OptionsService] Sending messages ");
-
-            messages.forEach(msg -> {
-                try {
-                    this.logger.log(Level.INFO, () -> "[OptionsService] sent message " + msg);
-                    queue.addMessage(new CloudQueueMessage(msg));
-                } catch (StorageException e) {
-                    logger.log(Level.INFO, () -> "[OptionsService] sent exception : " + e.getMessage());
-                }
-            });
-
+            // created once per process
+            StorageClientRegistry.ensureQueue(storageConnectionString, this.optionsQueue);
+            queue = StorageClientRegistry.getQueue(storageConnectionString, this.optionsQueue);
         } catch (URISyntaxException | StorageException | InvalidKeyException e) {
-            this.logger.log(Level.INFO, () -> "[OptionsService] queue exception : " + e.getMessage());
+            this.logger.log(Level.SEVERE, () -> "[OptionsService] queue exception : " + e.getMessage());
+            // no option of the flow could be sent
+            throw new IllegalStateException("Unable to open the options queue " + this.optionsQueue, e);
         }
+        return new OptionsBatchSink(queue, idPA, idFlow, dataFlow);
+    }
+
+    /**
+     * @return the number of options to collect before handing them to an {@link OptionsBatchSink}
+     */
+    public int getStreamingBatchSize() {
+        return claimCheckEnabled ? Math.max(claimCheckThreshold, claimCheckRange) : packer.getMaxOptions();
+    }
 
-        this.logger.log(Level.INFO, "[OptionsService] END options queue ");
+    /**
+     * Load the payment options of a claim-check message from its chunk blob.
+     *
+     * @param msg message carrying the chunk reference
+     * @return the options of the message range
+     */
+    public List<PaymentOption> loadOptions(OptionsMessage msg) throws IOException {
+        return this.getOptionsChunkStore().read(msg.getOptionsBlob(), msg.getOptionsOffset(), msg.getOptionsLength());
+    }
+
+    public OptionsChunkStore getOptionsChunkStore() {
+        return new OptionsChunkStore(this.storageConnectionString, this.optionsChunkBlob);
     }
 
     public void insertMessage(OptionsMessage msg) {
+        this.insertMessage(msg, delay != null ? Integer.parseInt(delay) : 0);
+    }
+
+    /**
+     * Enqueue the message, visible only after the given delay.
+     *
+     * @param msg                    the message, split in more messages if it doesn't fit the queue message size
+     * @param initialVisibilityDelay seconds before the message is visible, capped to the message time to live
+     */
+    public void insertMessage(OptionsMessage msg, int initialVisibilityDelay) {
 
         try {
             logger.log(Level.INFO, () -> "[OptionsService] pushing debt position in queue [" + optionsQueue + "]: " + msg);
 
-            AzuriteStorageUtil azuriteStorageUtil = new AzuriteStorageUtil(storageConnectionString, null, optionsQueue, null);
-            azuriteStorageUtil.createQueue();
-
-            CloudQueue queue = CloudStorageAccount.parse(storageConnectionString).
-                    createCloudQueueClient()
-                    .getQueueReference(optionsQueue);
+            StorageClientRegistry.ensureQueue(storageConnectionString, optionsQueue);
+            CloudQueue queue = StorageClientRegistry.getQueue(storageConnectionString, optionsQueue);
 
             int timeToLive = timeToLiveInSeconds != null ? Integer.parseInt(timeToLiveInSeconds) : 60;
-            int initialVisibilityDelay = delay != null ? Integer.parseInt(delay) : 0;
+            // the message must become visible before it expires
+            int visibilityDelay = timeToLive > 0 ? Math.min(initialVisibilityDelay, timeToLive - 1) : initialVisibilityDelay;
 
-            queue.addMessage(new CloudQueueMessage(new ObjectMapper().writeValueAsString(msg)), timeToLive, initialVisibilityDelay, null, null);
+            // options loaded from a claim-check chunk may not fit a single message
+            List<PaymentOption> options = msg.getPaymentOptions();
+            for (List<PaymentOption> batch : packer.pack(msg, options)) {
+                msg.setPaymentOptions(batch);
+                queue.addMessage(new CloudQueueMessage(MAPPER.writeValueAsString(msg)), timeToLive, visibilityDelay, null, null);
+            }
+            msg.setPaymentOptions(options);
         } catch (URISyntaxException | StorageException | InvalidKeyException | JsonProcessingException e) {
             this.logger.log(Level.SEVERE, () -> "[OptionsService ERROR] Error " + e);
         }
     }
 
+    /**
+     * Sends every received batch of options as {@link OptionsMessage}s packed by {@link OptionsMessagePacker}.
+     * Messages are enqueued concurrently by an {@link OptionsEnqueuer}: {@link #close()} waits for them to be sent.
+     */
+    public class OptionsBatchSink implements Consumer<List<PaymentOption>>, AutoCloseable {
+
+        private final OptionsEnqueuer enqueuer;
+        private final String idPA;
+        private final String idFlow;
+        private final String dataFlow;
+        private int batches;
+        private int chunks;
+        private int received;
+        private OptionsEnqueuer.EnqueueReport report;
+
+        private OptionsBatchSink(CloudQueue queue, String idPA, String idFlow, String dataFlow) {
+            this.enqueuer = new OptionsEnqueuer(queue, enqueueConcurrency, deadline);
+            this.idPA = idPA;
+            this.idFlow = idFlow;
+            this.dataFlow = dataFlow;
+        }
+
+        @Override
+        public void accept(List<PaymentOption> options) {
+            try {
+                send(options);
+            } catch (JsonProcessingException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Send the options, split in as many messages as needed to fit the queue message size.
+         */
+        public void send(List<PaymentOption> options) throws JsonProcessingException {
+            OptionsMessage optionsMsg = new OptionsMessage();
+            optionsMsg.setFlowDate(dataFlow);
+            optionsMsg.setIdPA(idPA);
+            optionsMsg.setIdFlow(idFlow);
+            optionsMsg.setRetryCount(0);
+            received += options.size();
+
+            if (claimCheckEnabled && options.size() >= claimCheckThreshold) {
+                this.sendClaimCheck(optionsMsg, options);
+                return;
+            }
+
+            for (List<PaymentOption> batch : packer.pack(optionsMsg, options)) {
+                optionsMsg.setPaymentOptions(batch);
+                String msg = MAPPER.writeValueAsString(optionsMsg);
+                logger.log(Level.INFO, () -> "[OptionsService] sent message " + msg);
+                enqueuer.submit(batches++, msg);
+            }
+        }
+
+        /**
+         * Store the options in a chunk blob and send a message for each range of the chunk.
+         */
+        private void sendClaimCheck(OptionsMessage optionsMsg, List<PaymentOption> options) throws JsonProcessingException {
+            // dataOra##idPa##idflow##chunk.csv
+            String blobName = dataFlow + "##" + idPA + "##" + idFlow + "##" + chunks++ + ".csv";
+            List<OptionsChunkStore.Range> ranges;
+            try {
+                ranges = getOptionsChunkStore().write(blobName, options, claimCheckRange);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, () -> "[OptionsService] chunk upload exception for " + blobName + ": " + e.getMessage());
+                throw e;
+            }
+            logger.log(Level.INFO, () -> "[OptionsService] " + options.size() + " options stored in chunk " + blobName);
+
+            for (OptionsChunkStore.Range range : ranges) {
+                optionsMsg.setOptionsBlob(blobName);
+                optionsMsg.setOptionsOffset(range.getOffset());
+                optionsMsg.setOptionsLength(range.getLength());
+                String msg = MAPPER.writeValueAsString(optionsMsg);
+                logger.log(Level.INFO, () -> "[OptionsService] sent message " + msg);
+                enqueuer.submit(batches++, msg);
+            }
+        }
+
+        /**
+         * @return the number of messages sent, available once the sink is closed
+         */
+        public int getSent() {
+            return report != null ? report.getSent() : 0;
+        }
+
+        /**
+         * @return the number of options received so far
+         */
+        public int getReceived() {
+            return received;
+        }
+
+        public OptionsEnqueuer.EnqueueReport getReport() {
+            return report;
+        }
+
+        @Override
+        public void close() {
+            report = enqueuer.awaitCompletion();
+            report.getFailed().forEach(failed -> logger.log(Level.SEVERE, () -> "[OptionsService] sent exception for batch "
+                    + failed.getBatch() + " of flow " + idPA + "/" + idFlow + ": " + failed.getError() + " - message " + failed.getMessage()));
+            logger.log(Level.INFO, () -> "[OptionsService] END options queue, " + report.getSent() + " messages sent and "
+                    + report.getFailed().size() + " failed for flow " + idFlow);
+        }
+    }
 }
@@ -0,0 +1,137 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.exception.AppException;
+import it.gov.pagopa.reporting.models.cache.Station;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Resolves the station of each PA on demand, instead of indexing the whole api config.
+ * <p>
+ * Resolved stations are kept in a bounded LRU for {@code ttl}; the PAs without a station are remembered
+ * for the shorter {@code negativeTtl}, so that their messages fail without a new lookup.
+ * Concurrent misses of the same PA share a single lookup.
+ */
+public class PaStationResolver {
+
+    /**
+     * Lookup of the station of a PA, e.g. a query of the api config restricted to the PA.
+     */
+    @FunctionalInterface
+    public interface Lookup {
+        Optional<Station> lookup(String idPa) throws AppException;
+    }
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LongSupplier clock;
+    private final Map<String, Entry> entries;
+    // lookups running, by PA
+    private final Map<String, CompletableFuture<Optional<Station>>> lookups = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    public PaStationResolver(int maxEntries, long ttlSeconds, long negativeTtlSeconds) {
+        this(maxEntries, ttlSeconds, negativeTtlSeconds, System::nanoTime);
+    }
+
+    PaStationResolver(int maxEntries, long ttlSeconds, long negativeTtlSeconds, LongSupplier clock) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param idPa   fiscal code of the PA
+     * @param lookup lookup of the station on a miss
+     * @return the station of the PA, empty if it has none
+     */
+    public Optional<Station> resolve(String idPa, Lookup lookup) throws AppException {
+        long now = clock.getAsLong();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(idPa);
+        }
+        if (entry != null && now < entry.expiresAt) {
+            if (entry.station == null) {
+                negativeHits.incrementAndGet();
+                return Optional.empty();
+            }
+            hits.incrementAndGet();
+            return Optional.of(entry.station);
+        }
+
+        misses.incrementAndGet();
+        CompletableFuture<Optional<Station>> mine = new CompletableFuture<>();
+        CompletableFuture<Optional<Station>> running = lookups.putIfAbsent(idPa, mine);
+        if (running != null) {
+            return await(running);
+        }
+        try {
+            Optional<Station> station = lookup.lookup(idPa);
+            Entry resolved = new Entry(station.orElse(null), clock.getAsLong() + (station.isPresent() ? ttlNanos : negativeTtlNanos));
+            synchronized (entries) {
+                entries.put(idPa, resolved);
+            }
+            mine.complete(station);
+            return station;
+        } catch (AppException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            lookups.remove(idPa, mine);
+        }
+    }
+
+    private static Optional<Station> await(CompletableFuture<Optional<Station>> running) throws AppException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof AppException) {
+                throw (AppException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    private static class Entry {
+        // null for a PA without a station
+        private final Station station;
+        private final long expiresAt;
+
+        private Entry(Station station, long expiresAt) {
+            this.station = station;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
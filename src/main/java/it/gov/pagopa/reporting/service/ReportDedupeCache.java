@@ -0,0 +1,292 @@
+package it.gov.pagopa.reporting.service;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.TableBatchOperation;
+import com.microsoft.azure.storage.table.TableOperation;
+import it.gov.pagopa.reporting.entities.ReportedOptionEntity;
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.StorageClientRegistry;
+import it.gov.pagopa.reporting.util.WorkerPools;
+
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the final outcome ({@link RetryStep#DONE} or {@link RetryStep#ERROR}) of the reported
+ * (idPA, IUV, transfer) triples, so that redelivered options are not reported to GPD again within the window.
+ * <p>
+ * Outcomes are kept in a bounded in-memory LRU and, when a table is configured, in a durable table shared by all
+ * the workers. Table writes are off the report path: a single writer stores them in batches per PA,
+ * so an outcome lost with the process only costs a redundant GPD call.
+ * <p>
+ * A Bloom filter of the keys recorded by this worker limits the table reads to the keys evicted from the LRU,
+ * so that a new option never waits for a table read: it is always on with a table, and optional otherwise.
+ * A false positive only costs a read, a key recorded by another worker only costs a redundant GPD call.
+ * A cached outcome is never trusted on the Bloom filter alone. The filter is rotated every window, or earlier when
+ * it reaches its capacity, and the previous generation is kept, so it doesn't saturate.
+ */
+public class ReportDedupeCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ReportDedupeCache.class.getName());
+    private static final ExecutorService WRITER = WorkerPools.fixed("dedupe-writer", "GPD_DEDUPE_WRITER_THREADS", 1);
+    // operations of a table batch
+    private static final int MAX_BATCH = 100;
+    private static volatile ReportDedupeCache instance = null;
+
+    private final long windowNanos;
+    private final LongSupplier clock;
+    private final Map<String, Outcome> lru;
+    private final boolean bloomGate;
+    private final long generationCapacity;
+    // keys recorded in the current and in the previous generation, guarded by lru
+    private BloomFilter<CharSequence> seen;
+    private BloomFilter<CharSequence> seenBefore;
+    private long generationStart;
+    private long generationKeys;
+    private final Queue<ReportedOptionEntity> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final String storageConnectionString;
+    private final String table;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ReportDedupeCache(int maxEntries, long windowSeconds, String storageConnectionString, String table, boolean bloomGate) {
+        this(maxEntries, windowSeconds, storageConnectionString, table, bloomGate, System::nanoTime);
+    }
+
+    ReportDedupeCache(int maxEntries, long windowSeconds, String storageConnectionString, String table, boolean bloomGate,
+                      LongSupplier clock) {
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.clock = clock;
+        this.lru = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Outcome> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.storageConnectionString = storageConnectionString;
+        this.table = table == null || table.isBlank() ? null : table;
+        // without the gate every LRU miss would be a synchronous table read
+        this.bloomGate = bloomGate || this.table != null;
+        this.generationCapacity = Math.max(maxEntries, 1) * 10L;
+        if (this.bloomGate) {
+            this.seen = this.newFilter();
+            this.generationStart = clock.getAsLong();
+        }
+    }
+
+    /**
+     * @return the process-wide cache, or null if GPD_DEDUPE_ENABLED is not true
+     */
+    public static ReportDedupeCache getInstance() {
+        if (instance == null && Boolean.parseBoolean(System.getenv("GPD_DEDUPE_ENABLED"))) {
+            synchronized (ReportDedupeCache.class) {
+                if (instance == null) {
+                    instance = new ReportDedupeCache(
+                            Integer.parseInt(System.getenv().getOrDefault("GPD_DEDUPE_MAX_ENTRIES", "100000")),
+                            Long.parseLong(System.getenv().getOrDefault("GPD_DEDUPE_WINDOW_SEC", "86400")),
+                            System.getenv("FLOW_SA_CONNECTION_STRING"),
+                            System.getenv("GPD_DEDUPE_TABLE"),
+                            Boolean.parseBoolean(System.getenv("GPD_DEDUPE_BLOOM")));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Report the option, unless its final outcome is already known.
+     */
+    public RetryStep report(String idPA, PaymentOption option, Function<PaymentOption, RetryStep> report) {
+        RetryStep known = this.lookup(idPA, option);
+        if (known != null) {
+            return known;
+        }
+        RetryStep step = report.apply(option);
+        this.record(idPA, option, step);
+        return step;
+    }
+
+    /**
+     * Report the transfers of an IUV whose final outcome is not already known, with a single call.
+     */
+    public List<RetryStep> reportIuv(String idPA, List<PaymentOption> transfers, Function<List<PaymentOption>, List<RetryStep>> report) {
+        List<RetryStep> steps = new ArrayList<>(transfers.size());
+        List<PaymentOption> unknown = new ArrayList<>();
+        for (PaymentOption transfer : transfers) {
+            RetryStep known = this.lookup(idPA, transfer);
+            steps.add(known);
+            if (known == null) {
+                unknown.add(transfer);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            List<RetryStep> reported = report.apply(unknown);
+            for (int i = 0, u = 0; i < steps.size(); i++) {
+                if (steps.get(i) == null) {
+                    RetryStep step = reported.get(u++);
+                    this.record(idPA, transfers.get(i), step);
+                    steps.set(i, step);
+                }
+            }
+        }
+        return steps;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private RetryStep lookup(String idPA, PaymentOption option) {
+        String key = key(idPA, option);
+        long now = clock.getAsLong();
+        Outcome outcome;
+        synchronized (lru) {
+            outcome = lru.get(key);
+        }
+        if (outcome == null && table != null && this.mightContain(key)) {
+            outcome = this.lookupTable(idPA, option);
+            if (outcome != null) {
+                synchronized (lru) {
+                    lru.put(key, outcome);
+                }
+            }
+        }
+        if (outcome != null && now - outcome.recordedAt < windowNanos) {
+            hits.incrementAndGet();
+            return outcome.step;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private void record(String idPA, PaymentOption option, RetryStep step) {
+        if (!RetryStep.DONE.equals(step) && !RetryStep.ERROR.equals(step)) {
+            return;
+        }
+        String key = key(idPA, option);
+        long now = clock.getAsLong();
+        synchronized (lru) {
+            lru.put(key, new Outcome(step, now));
+            if (bloomGate) {
+                if (now - generationStart >= windowNanos || generationKeys >= generationCapacity) {
+                    seenBefore = seen;
+                    seen = this.newFilter();
+                    generationStart = now;
+                    generationKeys = 0;
+                }
+                seen.put(key);
+                generationKeys++;
+            }
+        }
+        if (table != null) {
+            pending.add(new ReportedOptionEntity(idPA, option.getOptionId(), option.getTransferId(), step.name()));
+            if (writing.compareAndSet(false, true)) {
+                WRITER.execute(this::writePending);
+            }
+        }
+    }
+
+    boolean mightContain(String key) {
+        if (!bloomGate) {
+            return true;
+        }
+        synchronized (lru) {
+            return seen.mightContain(key) || (seenBefore != null && seenBefore.mightContain(key));
+        }
+    }
+
+    private BloomFilter<CharSequence> newFilter() {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), generationCapacity, 0.01);
+    }
+
+    /**
+     * Store the pending outcomes, in batches of the same PA; the outcomes recorded meanwhile go in the next batches.
+     */
+    private void writePending() {
+        do {
+            Map<String, Map<String, ReportedOptionEntity>> byPa = new LinkedHashMap<>();
+            ReportedOptionEntity entity;
+            while ((entity = pending.poll()) != null) {
+                // a batch can't change the same row twice: the last outcome wins
+                byPa.computeIfAbsent(entity.getPartitionKey(), pa -> new LinkedHashMap<>()).put(entity.getRowKey(), entity);
+            }
+            byPa.forEach((idPA, rows) -> {
+                List<ReportedOptionEntity> entities = new ArrayList<>(rows.values());
+                for (int from = 0; from < entities.size(); from += MAX_BATCH) {
+                    this.write(idPA, entities.subList(from, Math.min(from + MAX_BATCH, entities.size())));
+                }
+            });
+            writing.set(false);
+        } while (!pending.isEmpty() && writing.compareAndSet(false, true));
+    }
+
+    void write(String idPA, List<ReportedOptionEntity> entities) {
+        try {
+            TableBatchOperation batch = new TableBatchOperation();
+            entities.forEach(batch::insertOrReplace);
+            this.getTable().execute(batch);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, () -> "[ReportDedupeCache] unable to record " + entities.size() + " outcomes of "
+                    + idPA + ": " + e.getMessage());
+        }
+    }
+
+    private Outcome lookupTable(String idPA, PaymentOption option) {
+        try {
+            ReportedOptionEntity entity = this.getTable().execute(TableOperation.retrieve(idPA,
+                    option.getOptionId() + "_" + option.getTransferId(), ReportedOptionEntity.class)).getResultAsType();
+            if (entity == null || entity.getTimestamp() == null) {
+                return null;
+            }
+            // table timestamps are wall clock: convert the age to the cache clock
+            long age = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - entity.getTimestamp().getTime());
+            return new Outcome(RetryStep.valueOf(entity.getRetryStep()), clock.getAsLong() - age);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, () -> "[ReportDedupeCache] unable to read " + idPA + " " + option.getOptionId() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private CloudTable getTable() throws URISyntaxException, InvalidKeyException, StorageException {
+        StorageClientRegistry.ensureTable(storageConnectionString, table);
+        return StorageClientRegistry.getTable(storageConnectionString, table);
+    }
+
+    private static String key(String idPA, PaymentOption option) {
+        return idPA + "|" + option.getOptionId() + "|" + option.getTransferId();
+    }
+
+    private static class Outcome {
+        private final RetryStep step;
+        private final long recordedAt;
+
+        private Outcome(RetryStep step, long recordedAt) {
+            this.step = step;
+            this.recordedAt = recordedAt;
+        }
+    }
+}
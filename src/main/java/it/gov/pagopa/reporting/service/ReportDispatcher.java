@@ -0,0 +1,222 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.Deadline;
+import it.gov.pagopa.reporting.util.WorkerPools;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/**
+ * Reports the payment options of a message to GPD, running at most {@code concurrency} calls at the same time.
+ * <p>
+ * With a concurrency of 1 the calls are made one after another on the caller thread. Otherwise the caller waits
+ * until the deadline at most: the options whose report isn't started by then are {@link RetryStep#DEFERRED},
+ * the ones whose report is still running are {@link RetryStep#RETRY}, since the call may still succeed.
+ */
+public class ReportDispatcher {
+
+    private static final ExecutorService EXECUTOR = WorkerPools.fixed("gpd-report", "GPD_REPORT_THREADS", 16);
+
+    // state of a task when the caller stops waiting
+    private static final int NOT_STARTED = 0;
+    private static final int STARTED = 1;
+    private static final int COMPLETED = 2;
+
+    private final int concurrency;
+
+    public ReportDispatcher(int concurrency) {
+        this.concurrency = Math.max(concurrency, 1);
+    }
+
+    /**
+     * Report every option, storing the outcome in its retry action.
+     * <p>
+     * If a report throws, no further option is started and the first exception is rethrown
+     * once the running calls are over.
+     *
+     * @param options options to report
+     * @param report  the report call of a single option
+     * @return the options not reported with {@link RetryStep#DONE}, in their original order
+     */
+    public List<PaymentOption> dispatch(List<PaymentOption> options, Function<PaymentOption, RetryStep> report) {
+        return this.dispatch(options, report, Deadline.none());
+    }
+
+    /**
+     * @param options  options to report
+     * @param report   the report call of a single option
+     * @param deadline deadline of the invocation
+     * @return the options not reported with {@link RetryStep#DONE}, in their original order
+     * @see #dispatch(List, Function)
+     */
+    public List<PaymentOption> dispatch(List<PaymentOption> options, Function<PaymentOption, RetryStep> report, Deadline deadline) {
+        int[] states = this.run(options.size(), i -> {
+            PaymentOption option = options.get(i);
+            RetryStep step = report.apply(option);
+            return () -> option.setRetryAction(step.name());
+        }, deadline);
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != COMPLETED) {
+                options.get(i).setRetryAction(unfinished(states[i]).name());
+            }
+        }
+        return failed(options);
+    }
+
+    /**
+     * Report the options grouped by IUV, with a single report call for all the transfers of an IUV.
+     *
+     * @param options options to report
+     * @param report  the report call of the transfers of an IUV, returning the outcome of each transfer
+     * @return the options not reported with {@link RetryStep#DONE}, in their original order
+     * @see #dispatch(List, Function)
+     */
+    public List<PaymentOption> dispatchByIuv(List<PaymentOption> options, Function<List<PaymentOption>, List<RetryStep>> report) {
+        return this.dispatchByIuv(options, report, Deadline.none());
+    }
+
+    /**
+     * @param options  options to report
+     * @param report   the report call of the transfers of an IUV, returning the outcome of each transfer
+     * @param deadline deadline of the invocation
+     * @return the options not reported with {@link RetryStep#DONE}, in their original order
+     * @see #dispatchByIuv(List, Function)
+     */
+    public List<PaymentOption> dispatchByIuv(List<PaymentOption> options, Function<List<PaymentOption>, List<RetryStep>> report,
+                                             Deadline deadline) {
+        Map<String, List<PaymentOption>> byIuv = new LinkedHashMap<>();
+        options.forEach(option -> byIuv.computeIfAbsent(option.getOptionId(), iuv -> new ArrayList<>()).add(option));
+        List<List<PaymentOption>> groups = new ArrayList<>(byIuv.values());
+
+        int[] states = this.run(groups.size(), i -> {
+            List<PaymentOption> transfers = groups.get(i);
+            List<RetryStep> steps = report.apply(transfers);
+            return () -> {
+                for (int t = 0; t < transfers.size(); t++) {
+                    transfers.get(t).setRetryAction(steps.get(t).name());
+                }
+            };
+        }, deadline);
+        for (int i = 0; i < states.length; i++) {
+            if (states[i] != COMPLETED) {
+                RetryStep step = unfinished(states[i]);
+                groups.get(i).forEach(transfer -> transfer.setRetryAction(step.name()));
+            }
+        }
+        return failed(options);
+    }
+
+    /**
+     * Run the tasks, applying the outcome of the ones over before the deadline.
+     *
+     * @param tasks number of tasks
+     * @param task  runs a task and returns the update of its outcome
+     * @return the state of each task: {@link #COMPLETED} if its outcome is applied
+     */
+    private int[] run(int tasks, IntFunction<Runnable> task, Deadline deadline) {
+        int[] states = new int[tasks];
+        int workers = Math.min(concurrency, tasks);
+        if (workers <= 1) {
+            for (int i = 0; i < tasks; i++) {
+                task.apply(i).run();
+                states[i] = COMPLETED;
+            }
+            return states;
+        }
+        AtomicBoolean closed = new AtomicBoolean();
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        IntSupplier claim = () -> {
+            synchronized (states) {
+                int i = next.get();
+                if (closed.get() || i >= tasks) {
+                    return -1;
+                }
+                states[next.getAndIncrement()] = STARTED;
+                return i;
+            }
+        };
+        Runnable worker = () -> {
+            int i;
+            while (error.get() == null && (i = claim.getAsInt()) >= 0) {
+                try {
+                    Runnable outcome = task.apply(i);
+                    synchronized (states) {
+                        // a late outcome is dropped: the caller has already classified the task
+                        if (!closed.get()) {
+                            outcome.run();
+                            states[i] = COMPLETED;
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+        CompletableFuture<?>[] running = new CompletableFuture<?>[workers];
+        for (int w = 0; w < workers; w++) {
+            running[w] = CompletableFuture.runAsync(worker, EXECUTOR);
+        }
+        try {
+            CompletableFuture.allOf(running).get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // out of time: the tasks still running are left to complete on their own
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (states) {
+            closed.set(true);
+        }
+        rethrow(error.get());
+        return states;
+    }
+
+    /**
+     * A report not started is deferred without spending an attempt; a report still running may succeed,
+     * so it's retried as a failure, and a duplicate report is absorbed by the dedupe cache.
+     */
+    private static RetryStep unfinished(int state) {
+        return state == STARTED ? RetryStep.RETRY : RetryStep.DEFERRED;
+    }
+
+    private static List<PaymentOption> failed(List<PaymentOption> options) {
+        List<PaymentOption> failed = new ArrayList<>();
+        for (PaymentOption option : options) {
+            if (!RetryStep.DONE.name().equals(option.getRetryAction())) {
+                failed.add(option);
+            }
+        }
+        return failed;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    private static void rethrow(Throwable error) {
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+    }
+}
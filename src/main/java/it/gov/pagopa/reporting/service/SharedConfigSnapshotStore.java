@@ -0,0 +1,301 @@
+package it.gov.pagopa.reporting.service;
+
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobDownloadResponse;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.specialized.BlobLeaseClientBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import it.gov.pagopa.reporting.util.StorageClientRegistry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Api config snapshot shared by all the instances through a blob, so that the api config is downloaded
+ * once per refresh instead of once per instance.
+ * <p>
+ * An instance reads the blob with a conditional GET on the ETag of its last read. When the blob is missing or older
+ * than {@code maxAgeSeconds}, the instance that acquires the blob lease downloads the api config and writes it;
+ * meanwhile the others keep using the stale blob, or wait for the first one to be written.
+ * The lease is renewed every half of its duration while the api config is downloaded, and the blob is written under it.
+ * On storage errors the api config is downloaded directly.
+ * <p>
+ * The content is returned with the time of the blob write, and marked stale when it is served past its maximum age.
+ */
+public class SharedConfigSnapshotStore {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedConfigSnapshotStore.class.getName());
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long POLL_MILLIS = 500;
+    private static final ScheduledExecutorService LEASE_RENEWER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "config-snapshot-lease");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String storageConnectionString;
+    private final String container;
+    private final String blobName;
+    private final long maxAgeSeconds;
+    private final int leaseSeconds;
+    private final long waitMillis;
+    // last blob read, to skip the download while the ETag doesn't change
+    private volatile Shared lastRead;
+
+    public SharedConfigSnapshotStore(String storageConnectionString, String container, String blobName,
+                                     long maxAgeSeconds, int leaseSeconds, long waitMillis) {
+        this.storageConnectionString = storageConnectionString;
+        this.container = container;
+        this.blobName = blobName;
+        this.maxAgeSeconds = maxAgeSeconds;
+        // the lease duration must be between 15 and 60 seconds
+        this.leaseSeconds = Math.max(15, Math.min(leaseSeconds, 60));
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * @param upstream download of the api config
+     * @return the shared snapshot, refreshed from upstream by this instance if it is its turn
+     */
+    public ConfigSnapshotCache.Loaded load(Callable<CacheResponse> upstream) throws Exception {
+        BlobClient blob;
+        Shared shared;
+        try {
+            blob = this.getBlobClient();
+            shared = this.read(blob);
+        } catch (RuntimeException | IOException e) {
+            LOGGER.log(Level.WARNING, () -> "[SharedConfigSnapshotStore] unable to read " + blobName + ": " + e.getMessage());
+            return ConfigSnapshotCache.Loaded.now(upstream.call());
+        }
+        if (shared != null && shared.isFresh(maxAgeSeconds)) {
+            return shared.loaded(false);
+        }
+
+        String leaseId;
+        try {
+            if (shared == null) {
+                // a blob must exist to be leased
+                this.create(blob);
+            }
+            leaseId = this.acquireLease(blob, leaseSeconds);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, () -> "[SharedConfigSnapshotStore] unable to lease " + blobName + ": " + e.getMessage());
+            return shared != null ? shared.loaded(true) : ConfigSnapshotCache.Loaded.now(upstream.call());
+        }
+        if (leaseId == null) {
+            // another instance is refreshing the blob
+            return shared != null ? shared.loaded(true) : this.awaitFirstWrite(blob, upstream);
+        }
+        // the download may outlast the lease: keep it until the blob is written
+        long renewalMillis = this.getLeaseRenewalMillis();
+        ScheduledFuture<?> renewal = LEASE_RENEWER.scheduleAtFixedRate(() -> this.renew(blob, leaseId),
+                renewalMillis, renewalMillis, TimeUnit.MILLISECONDS);
+        try {
+            // the blob may have been refreshed since it was read
+            Shared current = this.read(blob);
+            if (current != null && current.isFresh(maxAgeSeconds)) {
+                return current.loaded(false);
+            }
+            CacheResponse content = upstream.call();
+            try {
+                this.upload(blob, serialize(content), leaseId);
+            } catch (RuntimeException | IOException e) {
+                // the other instances will try again
+                LOGGER.log(Level.WARNING, () -> "[SharedConfigSnapshotStore] unable to write " + blobName + ": " + e.getMessage());
+            }
+            return ConfigSnapshotCache.Loaded.now(content);
+        } finally {
+            renewal.cancel(false);
+            try {
+                this.releaseLease(blob, leaseId);
+            } catch (RuntimeException e) {
+                // it expires anyway
+                LOGGER.log(Level.WARNING, () -> "[SharedConfigSnapshotStore] unable to release the lease of " + blobName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    protected BlobClient getBlobClient() {
+        StorageClientRegistry.ensureBlobContainer(this.storageConnectionString, this.container);
+        return StorageClientRegistry.getBlobContainerClient(this.storageConnectionString, this.container).getBlobClient(blobName);
+    }
+
+    /**
+     * @param ifNoneMatch ETag of the last read, null if none
+     * @return the blob, {@link Download#NOT_MODIFIED} if its ETag is {@code ifNoneMatch}, null if it doesn't exist
+     */
+    protected Download download(BlobClient blob, String ifNoneMatch) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try {
+            BlobDownloadResponse response = blob.downloadStreamWithResponse(data, null, null,
+                    ifNoneMatch != null ? new BlobRequestConditions().setIfNoneMatch(ifNoneMatch) : null, false, null, Context.NONE);
+            return new Download(response.getDeserializedHeaders().getETag(), response.getDeserializedHeaders().getLastModified(),
+                    data.toByteArray());
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == 304) {
+                return Download.NOT_MODIFIED;
+            }
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Create the blob empty, unless it exists.
+     */
+    protected void create(BlobClient blob) {
+        try {
+            blob.upload(BinaryData.fromBytes(new byte[0]), false);
+        } catch (BlobStorageException e) {
+            // already created by another instance
+            if (e.getStatusCode() != 409 && e.getStatusCode() != 412) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return the lease id, or null if the blob is leased by another instance
+     */
+    protected String acquireLease(BlobClient blob, int leaseSeconds) {
+        try {
+            return new BlobLeaseClientBuilder().blobClient(blob).buildClient().acquireLease(leaseSeconds);
+        } catch (BlobStorageException e) {
+            if (e.getStatusCode() == 409) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    protected void upload(BlobClient blob, byte[] data, String leaseId) {
+        blob.uploadWithResponse(new BlobParallelUploadOptions(BinaryData.fromBytes(data))
+                .setRequestConditions(new BlobRequestConditions().setLeaseId(leaseId)), null, Context.NONE);
+    }
+
+    protected void renewLease(BlobClient blob, String leaseId) {
+        new BlobLeaseClientBuilder().blobClient(blob).leaseId(leaseId).buildClient().renewLease();
+    }
+
+    protected void releaseLease(BlobClient blob, String leaseId) {
+        new BlobLeaseClientBuilder().blobClient(blob).leaseId(leaseId).buildClient().releaseLease();
+    }
+
+    protected long getLeaseRenewalMillis() {
+        return TimeUnit.SECONDS.toMillis(leaseSeconds) / 2;
+    }
+
+    private void renew(BlobClient blob, String leaseId) {
+        try {
+            this.renewLease(blob, leaseId);
+        } catch (RuntimeException e) {
+            // the write under the lost lease fails, and the other instances will try again
+            LOGGER.log(Level.WARNING, () -> "[SharedConfigSnapshotStore] unable to renew the lease of " + blobName + ": " + e.getMessage());
+        }
+    }
+
+    private Shared read(BlobClient blob) throws IOException {
+        Shared previous = this.lastRead;
+        Download download = this.download(blob, previous != null ? previous.etag : null);
+        if (download == Download.NOT_MODIFIED) {
+            return previous;
+        }
+        if (download == null || download.data.length == 0) {
+            // missing, or created to be leased and not written yet
+            return null;
+        }
+        Shared shared = new Shared(download.etag, download.lastModified, deserialize(download.data));
+        this.lastRead = shared;
+        return shared;
+    }
+
+    private ConfigSnapshotCache.Loaded awaitFirstWrite(BlobClient blob, Callable<CacheResponse> upstream) throws Exception {
+        long until = System.currentTimeMillis() + waitMillis;
+        while (System.currentTimeMillis() < until) {
+            Thread.sleep(POLL_MILLIS);
+            Shared shared = this.read(blob);
+            if (shared != null) {
+                return shared.loaded(false);
+            }
+        }
+        return ConfigSnapshotCache.Loaded.now(upstream.call());
+    }
+
+    /**
+     * Compact form: gzipped JSON of the station and creditor institution station lists.
+     */
+    static byte[] serialize(CacheResponse content) throws IOException {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("creditorInstitutionStations", content.getCreditorInstitutionStations());
+        snapshot.put("stations", content.getStations());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        try (OutputStream os = new GZIPOutputStream(data)) {
+            MAPPER.writeValue(os, snapshot);
+        }
+        return data.toByteArray();
+    }
+
+    static CacheResponse deserialize(byte[] data) throws IOException {
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return MAPPER.readValue(is, CacheResponse.class);
+        }
+    }
+
+    protected static final class Download {
+        static final Download NOT_MODIFIED = new Download(null, null, new byte[0]);
+
+        private final String etag;
+        private final OffsetDateTime lastModified;
+        private final byte[] data;
+
+        protected Download(String etag, OffsetDateTime lastModified, byte[] data) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.data = data;
+        }
+    }
+
+    private static class Shared {
+        private final String etag;
+        private final OffsetDateTime lastModified;
+        private final CacheResponse content;
+
+        private Shared(String etag, OffsetDateTime lastModified, CacheResponse content) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+
+        private boolean isFresh(long maxAgeSeconds) {
+            return lastModified != null && lastModified.plusSeconds(maxAgeSeconds).isAfter(OffsetDateTime.now());
+        }
+
+        private ConfigSnapshotCache.Loaded loaded(boolean stale) {
+            // the blob is written right after the download
+            long downloadedAt = lastModified != null ? lastModified.toInstant().toEpochMilli() : 0;
+            return ConfigSnapshotCache.Loaded.of(content, downloadedAt, stale);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package it.gov.pagopa.reporting.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Additive-increase/multiplicative-decrease limit on the in-flight calls to a remote service.
+ * <p>
+ * Every call completed on time with a successful status grows the limit by {@code 1 / limit}, i.e. by about one
+ * call per round trip; a throttled (429), failed (5xx or no response) or slow call multiplies it by
+ * {@code backoffRatio}, at most once per slow-call window, so that a burst of failures of the calls in flight
+ * counts as one overload signal. Client errors (4xx other than 429) leave the limit unchanged.
+ * The limit stays between {@code minLimit} and {@code maxLimit}.
+ */
+public class AdaptiveLimiter {
+
+    private static final double DEFAULT_BACKOFF_RATIO = 0.7;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long slowCallNanos;
+    private final double backoffRatio;
+    private final LongSupplier clock;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    // clock of the last decrease, valid if decreased
+    private long lastDecreaseAt;
+    private boolean decreased;
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long slowCallMillis) {
+        this(initialLimit, minLimit, maxLimit, slowCallMillis, DEFAULT_BACKOFF_RATIO);
+    }
+
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long slowCallMillis, double backoffRatio) {
+        this(initialLimit, minLimit, maxLimit, slowCallMillis, backoffRatio, System::nanoTime);
+    }
+
+    AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long slowCallMillis, double backoffRatio, LongSupplier clock) {
+        this.clock = clock;
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Wait for a free slot under the current limit.
+     *
+     * @param timeout max wait
+     * @param unit    unit of the timeout
+     * @return false if no slot was freed in time: the call must not be made and {@link #release} not called
+     */
+    public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = available.awaitNanos(nanos);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free the slot of a completed call and adapt the limit to its outcome.
+     *
+     * @param latencyNanos duration of the call
+     * @param status       HTTP status of the call, -1 if no response was received
+     * @return the limit after the update
+     */
+    public int release(long latencyNanos, int status) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (status == 429 || status >= 500 || status < 0 || latencyNanos > slowCallNanos) {
+                long now = clock.getAsLong();
+                if (!decreased || now - lastDecreaseAt >= slowCallNanos) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecreaseAt = now;
+                    decreased = true;
+                }
+            } else if (status < 400) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            available.signalAll();
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current max number of in-flight calls
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
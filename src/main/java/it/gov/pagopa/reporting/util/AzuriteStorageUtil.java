@@ -1,15 +1,8 @@
 package it.gov.pagopa.reporting.util;
 
 
-import com.azure.storage.blob.BlobContainerClient;
-import com.azure.storage.blob.BlobServiceClient;
-import com.azure.storage.blob.BlobServiceClientBuilder;
-import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.RetryNoRetry;
 import com.microsoft.azure.storage.StorageException;
-import com.microsoft.azure.storage.queue.CloudQueue;
-import com.microsoft.azure.storage.table.CloudTable;
-import com.microsoft.azure.storage.table.CloudTableClient;
 import com.microsoft.azure.storage.table.TableRequestOptions;
 import lombok.AllArgsConstructor;
 
@@ -29,35 +22,23 @@ public class AzuriteStorageUtil {
     // Create a new table
     public void createTable() throws URISyntaxException, InvalidKeyException, StorageException {
         if (debugAzurite) {
-            CloudStorageAccount cloudStorageAccount = CloudStorageAccount.parse(storageConnectionString);
-            CloudTableClient cloudTableClient = cloudStorageAccount.createCloudTableClient();
             TableRequestOptions tableRequestOptions = new TableRequestOptions();
             tableRequestOptions.setRetryPolicyFactory(RetryNoRetry.getInstance()); // disable retry to complete faster
-            cloudTableClient.setDefaultRequestOptions(tableRequestOptions);
-            CloudTable table = cloudTableClient.getTableReference(flowsTable);
-
-            table.createIfNotExists();
+            StorageClientRegistry.ensureTable(storageConnectionString, flowsTable, tableRequestOptions);
         }
     }
 
     // Create a new queue
     public void createQueue() throws URISyntaxException, InvalidKeyException, StorageException {
         if (debugAzurite) {
-            CloudQueue queue = CloudStorageAccount.parse(storageConnectionString).createCloudQueueClient()
-                    .getQueueReference(flowsQueue);
-            queue.createIfNotExists();
+            StorageClientRegistry.ensureQueue(storageConnectionString, flowsQueue);
         }
     }
 
     // Create a new blob
     public void createBlob() throws NullPointerException {
         if (debugAzurite) {
-            BlobServiceClient blobServiceClient = new BlobServiceClientBuilder()
-                    .connectionString(this.storageConnectionString).buildClient();
-            BlobContainerClient container = blobServiceClient.getBlobContainerClient(containerBlob);
-            if (!container.exists()) {
-                blobServiceClient.createBlobContainer(containerBlob);
-            }
+            StorageClientRegistry.ensureBlobContainer(this.storageConnectionString, containerBlob);
         }
     }
 }
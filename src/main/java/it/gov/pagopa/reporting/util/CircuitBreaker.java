@@ -0,0 +1,144 @@
+package it.gov.pagopa.reporting.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker for the calls to a remote service.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the circuit opens and calls are rejected for
+ * {@code openMillis}. Then it goes half-open: one probe call at a time is let through, doubling the allowed
+ * concurrent probes after each success, until {@code successThreshold} probes succeed and the circuit closes.
+ * A failed probe opens the circuit again. Only the probes of the current half-open round count there: the outcome of
+ * a call admitted while closed, completing once the circuit has opened, is ignored.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int successThreshold;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private int probeLimit;
+    private int probesInFlight;
+    private int probeSuccesses;
+    // number of the current half-open round, to tell its probes from the ones of the previous rounds
+    private long halfOpenRound;
+
+    public CircuitBreaker(int failureThreshold, long openMillis, int successThreshold) {
+        this(failureThreshold, openMillis, successThreshold, System::nanoTime);
+    }
+
+    CircuitBreaker(int failureThreshold, long openMillis, int successThreshold, LongSupplier clock) {
+        this.failureThreshold = Math.max(failureThreshold, 1);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.successThreshold = Math.max(successThreshold, 1);
+        this.clock = clock;
+    }
+
+    /**
+     * @return the permit of the call, null if the call can't be made; otherwise {@link #onSuccess(Permit)},
+     * {@link #onFailure(Permit)} or {@link #onSkipped(Permit)} must then be called with it
+     */
+    public synchronized Permit tryAcquire() {
+        if (state == State.OPEN) {
+            if (clock.getAsLong() - openedAt < openNanos) {
+                return null;
+            }
+            state = State.HALF_OPEN;
+            halfOpenRound++;
+            probeLimit = 1;
+            probeSuccesses = 0;
+            probesInFlight = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= probeLimit) {
+                return null;
+            }
+            probesInFlight++;
+            return new Permit(halfOpenRound);
+        }
+        return Permit.CALL;
+    }
+
+    public synchronized void onSuccess(Permit permit) {
+        if (state == State.CLOSED) {
+            failures = 0;
+        } else if (this.isCurrentProbe(permit)) {
+            probesInFlight--;
+            probeSuccesses++;
+            if (probeSuccesses >= successThreshold) {
+                state = State.CLOSED;
+                failures = 0;
+            } else {
+                // let traffic back in gradually
+                probeLimit = Math.min(probeLimit * 2, successThreshold);
+            }
+        }
+        // otherwise a call admitted before the circuit opened: its outcome is out of date
+    }
+
+    public synchronized void onFailure(Permit permit) {
+        if (state == State.CLOSED) {
+            if (++failures >= failureThreshold) {
+                this.open();
+            }
+        } else if (this.isCurrentProbe(permit)) {
+            this.open();
+        }
+    }
+
+    /**
+     * The call was admitted but not made, e.g. it found no local capacity: its probe slot, if any, is freed.
+     */
+    public synchronized void onSkipped(Permit permit) {
+        if (this.isCurrentProbe(permit)) {
+            probesInFlight--;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private boolean isCurrentProbe(Permit permit) {
+        return state == State.HALF_OPEN && permit.probe && permit.round == halfOpenRound;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+        failures = 0;
+        probesInFlight = 0;
+    }
+
+    /**
+     * Admission of a call: a probe of a half-open round, or a call admitted while closed.
+     */
+    public static final class Permit {
+        private static final Permit CALL = new Permit(false, 0);
+
+        private final boolean probe;
+        private final long round;
+
+        private Permit(long round) {
+            this(true, round);
+        }
+
+        private Permit(boolean probe, long round) {
+            this.probe = probe;
+            this.round = round;
+        }
+
+        public boolean isProbe() {
+            return probe;
+        }
+    }
+}
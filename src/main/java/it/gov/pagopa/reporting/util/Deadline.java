@@ -0,0 +1,80 @@
+package it.gov.pagopa.reporting.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Time budget of a function invocation: outbound calls take their timeout from what is left of it,
+ * and the work that can't be completed in time goes back to the queue.
+ */
+public final class Deadline {
+
+    private static final Deadline NONE = new Deadline(Long.MAX_VALUE, System::nanoTime);
+
+    private final long deadlineNanos;
+    private final LongSupplier clock;
+
+    private Deadline(long deadlineNanos, LongSupplier clock) {
+        this.deadlineNanos = deadlineNanos;
+        this.clock = clock;
+    }
+
+    public static Deadline after(long millis) {
+        return after(millis, System::nanoTime);
+    }
+
+    static Deadline after(long millis, LongSupplier clock) {
+        return new Deadline(clock.getAsLong() + TimeUnit.MILLISECONDS.toNanos(millis), clock);
+    }
+
+    /**
+     * @return a deadline that never expires
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * Budget of a queue triggered invocation: the function timeout (FUNCTION_TIMEOUT_SEC, 5 minutes by default) or,
+     * when shorter, the visibility timeout of the message (QUEUE_VISIBILITY_TIMEOUT_SEC), less a safety margin
+     * (DEADLINE_MARGIN_SEC) to re-enqueue the work left.
+     *
+     * @return the deadline of an invocation starting now
+     */
+    public static Deadline forInvocation() {
+        long budget = Long.parseLong(System.getenv().getOrDefault("FUNCTION_TIMEOUT_SEC", "300"));
+        String visibility = System.getenv("QUEUE_VISIBILITY_TIMEOUT_SEC");
+        if (visibility != null && !visibility.isBlank()) {
+            budget = Math.min(budget, Long.parseLong(visibility));
+        }
+        long margin = Long.parseLong(System.getenv().getOrDefault("DEADLINE_MARGIN_SEC", "10"));
+        return after(TimeUnit.SECONDS.toMillis(Math.max(budget - margin, 0)));
+    }
+
+    public long remainingMillis() {
+        if (this == NONE) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - clock.getAsLong());
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() <= 0;
+    }
+
+    /**
+     * @param millis duration of the work
+     * @return true if the work can complete before the deadline
+     */
+    public boolean allows(long millis) {
+        return remainingMillis() >= millis;
+    }
+
+    /**
+     * @param maxMillis configured timeout of the call
+     * @return the timeout of a call starting now: the configured one, shortened to the remaining budget
+     */
+    public int timeoutMillis(int maxMillis) {
+        return (int) Math.max(Math.min(maxMillis, remainingMillis()), 1);
+    }
+}
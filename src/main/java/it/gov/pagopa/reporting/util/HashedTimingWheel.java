@@ -0,0 +1,118 @@
+package it.gov.pagopa.reporting.util;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel: schedules many short timers with a single thread and O(1) insertion.
+ * <p>
+ * Time is split in ticks of {@code tickMillis}; a timer goes in the bucket of its expiration tick modulo the wheel
+ * size and fires, with a precision of one tick, when the wheel reaches it after the remaining rounds.
+ * Tasks run on the wheel thread, so they must only hand the work over to another thread.
+ */
+public class HashedTimingWheel implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(HashedTimingWheel.class.getName());
+
+    private final long tickNanos;
+    private final ArrayDeque<Timer>[] buckets;
+    private final int mask;
+    private final Queue<Timer> scheduled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(String name, long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tickMillis, 1));
+        // power of two, to find the bucket with a mask
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            this.buckets[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Run the task once the delay is over.
+     */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!running) {
+            throw new IllegalStateException("timing wheel stopped");
+        }
+        scheduled.add(new Timer(task, System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0))));
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            this.transferScheduled();
+            this.expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferScheduled() {
+        Timer timer;
+        while ((timer = scheduled.poll()) != null) {
+            long expirationTick = Math.max(timer.deadline / tickNanos, tick);
+            timer.rounds = (expirationTick - tick) / buckets.length;
+            buckets[(int) (expirationTick & mask)].add(timer);
+        }
+    }
+
+    private void expire(ArrayDeque<Timer> bucket) {
+        Iterator<Timer> timers = bucket.iterator();
+        while (timers.hasNext()) {
+            Timer timer = timers.next();
+            if (timer.rounds <= 0) {
+                timers.remove();
+                try {
+                    timer.task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, e, () -> "[HashedTimingWheel] timer task failed");
+                }
+            } else {
+                timer.rounds--;
+            }
+        }
+    }
+
+    private static class Timer {
+        private final Runnable task;
+        // nanos since the wheel start
+        private final long deadline;
+        private long rounds;
+
+        private Timer(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package it.gov.pagopa.reporting.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Visibility delay of re-enqueued messages: exponential growth from a base delay, capped, with equal jitter
+ * so that the messages failed together don't come back together, nor right away.
+ * <p>
+ * The delay of the n-th retry (0 based) is a random value in {@code [ceiling / 2, ceiling]},
+ * with {@code ceiling = min(max, base * multiplier^n)}, or exactly the ceiling when the jitter is disabled.
+ */
+public class RetryPolicy {
+
+    private final int baseSeconds;
+    private final int maxSeconds;
+    private final double multiplier;
+    private final boolean jitter;
+    private final DoubleSupplier random;
+
+    public RetryPolicy(int baseSeconds, int maxSeconds, double multiplier, boolean jitter) {
+        this(baseSeconds, maxSeconds, multiplier, jitter, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    RetryPolicy(int baseSeconds, int maxSeconds, double multiplier, boolean jitter, DoubleSupplier random) {
+        this.baseSeconds = Math.max(baseSeconds, 0);
+        this.maxSeconds = Math.max(maxSeconds, this.baseSeconds);
+        this.multiplier = Math.max(multiplier, 1);
+        this.jitter = jitter;
+        this.random = random;
+    }
+
+    /**
+     * Read the policy of a re-queue path from {@code <prefix>_RETRY_BASE_SEC}, {@code <prefix>_RETRY_MAX_SEC},
+     * {@code <prefix>_RETRY_MULTIPLIER} and {@code <prefix>_RETRY_JITTER}.
+     *
+     * @param prefix      prefix of the path variables, e.g. {@code OPTIONS}
+     * @param baseSeconds base delay used when {@code <prefix>_RETRY_BASE_SEC} is not set
+     * @return the policy, by default doubling the delay up to 8 times the base, with jitter
+     */
+    public static RetryPolicy fromEnv(String prefix, int baseSeconds) {
+        int base = Integer.parseInt(System.getenv().getOrDefault(prefix + "_RETRY_BASE_SEC", String.valueOf(baseSeconds)));
+        return new RetryPolicy(base,
+                Integer.parseInt(System.getenv().getOrDefault(prefix + "_RETRY_MAX_SEC", String.valueOf(base * 8))),
+                Double.parseDouble(System.getenv().getOrDefault(prefix + "_RETRY_MULTIPLIER", "2")),
+                Boolean.parseBoolean(System.getenv().getOrDefault(prefix + "_RETRY_JITTER", "true")));
+    }
+
+    /**
+     * @param retry number of retries already made, 0 for the first one
+     * @return the visibility delay in seconds
+     */
+    public int delaySeconds(int retry) {
+        double ceiling = Math.min(maxSeconds, baseSeconds * Math.pow(multiplier, Math.max(retry, 0)));
+        return (int) Math.round(jitter ? ceiling / 2 + random.getAsDouble() * ceiling / 2 : ceiling);
+    }
+}
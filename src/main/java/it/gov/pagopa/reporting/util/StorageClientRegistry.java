@@ -0,0 +1,141 @@
+package it.gov.pagopa.reporting.util;
+
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueClient;
+import com.microsoft.azure.storage.table.CloudTable;
+import com.microsoft.azure.storage.table.CloudTableClient;
+import com.microsoft.azure.storage.table.TableRequestOptions;
+
+import java.net.URISyntaxException;
+import java.security.InvalidKeyException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide cache of storage clients, keyed by connection string and resource name.
+ * <p>
+ * Clients are built once per worker instead of on every message, so that their HTTP connection pools are reused;
+ * the {@code ensure*} methods run the create-if-not-exists call only until it succeeds once.
+ */
+public final class StorageClientRegistry {
+
+    private static final String SEPARATOR = "|";
+
+    private static final ConcurrentMap<String, BlobServiceClient> BLOB_SERVICES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, BlobContainerClient> BLOB_CONTAINERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CloudQueueClient> QUEUE_CLIENTS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CloudQueue> QUEUES = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CloudTableClient> TABLE_CLIENTS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CloudTable> TABLES = new ConcurrentHashMap<>();
+    private static final Set<String> ENSURED = ConcurrentHashMap.newKeySet();
+
+    private StorageClientRegistry() {
+    }
+
+    public static BlobContainerClient getBlobContainerClient(String connectionString, String container) {
+        return BLOB_CONTAINERS.computeIfAbsent(key(connectionString, container),
+                k -> BLOB_SERVICES.computeIfAbsent(connectionString,
+                        cs -> new BlobServiceClientBuilder().connectionString(cs).buildClient())
+                        .getBlobContainerClient(container));
+    }
+
+    public static CloudQueue getQueue(String connectionString, String queueName)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        String key = key(connectionString, queueName);
+        CloudQueue queue = QUEUES.get(key);
+        if (queue == null) {
+            CloudQueueClient client = QUEUE_CLIENTS.get(connectionString);
+            if (client == null) {
+                client = CloudStorageAccount.parse(connectionString).createCloudQueueClient();
+                QUEUE_CLIENTS.putIfAbsent(connectionString, client);
+            }
+            queue = client.getQueueReference(queueName);
+            CloudQueue previous = QUEUES.putIfAbsent(key, queue);
+            queue = previous != null ? previous : queue;
+        }
+        return queue;
+    }
+
+    public static CloudTable getTable(String connectionString, String tableName)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        String key = key(connectionString, tableName);
+        CloudTable table = TABLES.get(key);
+        if (table == null) {
+            CloudTableClient client = TABLE_CLIENTS.get(connectionString);
+            if (client == null) {
+                client = CloudStorageAccount.parse(connectionString).createCloudTableClient();
+                TABLE_CLIENTS.putIfAbsent(connectionString, client);
+            }
+            table = client.getTableReference(tableName);
+            CloudTable previous = TABLES.putIfAbsent(key, table);
+            table = previous != null ? previous : table;
+        }
+        return table;
+    }
+
+    /**
+     * Create the blob container, unless this process has already created or found it.
+     */
+    public static void ensureBlobContainer(String connectionString, String container) {
+        String key = "blob" + SEPARATOR + key(connectionString, container);
+        if (!ENSURED.contains(key)) {
+            getBlobContainerClient(connectionString, container).createIfNotExists();
+            ENSURED.add(key);
+        }
+    }
+
+    /**
+     * Create the queue, unless this process has already created or found it.
+     */
+    public static void ensureQueue(String connectionString, String queueName)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        String key = "queue" + SEPARATOR + key(connectionString, queueName);
+        if (!ENSURED.contains(key)) {
+            getQueue(connectionString, queueName).createIfNotExists();
+            ENSURED.add(key);
+        }
+    }
+
+    /**
+     * Create the table, unless this process has already created or found it.
+     */
+    public static void ensureTable(String connectionString, String tableName)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        ensureTable(connectionString, tableName, null);
+    }
+
+    /**
+     * Create the table with the given request options, unless this process has already created or found it.
+     */
+    public static void ensureTable(String connectionString, String tableName, TableRequestOptions options)
+            throws URISyntaxException, InvalidKeyException, StorageException {
+        String key = "table" + SEPARATOR + key(connectionString, tableName);
+        if (!ENSURED.contains(key)) {
+            getTable(connectionString, tableName).createIfNotExists(options, null);
+            ENSURED.add(key);
+        }
+    }
+
+    /**
+     * Drop every cached client, e.g. after a credential rotation.
+     */
+    public static void clear() {
+        BLOB_SERVICES.clear();
+        BLOB_CONTAINERS.clear();
+        QUEUE_CLIENTS.clear();
+        QUEUES.clear();
+        TABLE_CLIENTS.clear();
+        TABLES.clear();
+        ENSURED.clear();
+    }
+
+    private static String key(String connectionString, String resource) {
+        return connectionString + SEPARATOR + resource;
+    }
+}
@@ -0,0 +1,40 @@
+package it.gov.pagopa.reporting.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide pools of daemon threads, one per concern.
+ * <p>
+ * Each pool runs at most the configured number of threads, whatever the number of concurrent invocations:
+ * the tasks beyond it wait in the pool queue. Idle threads end after a minute.
+ */
+public final class WorkerPools {
+
+    private static final long KEEP_ALIVE_SEC = 60;
+
+    private WorkerPools() {
+    }
+
+    /**
+     * @param name           prefix of the thread names
+     * @param threadsEnv     variable with the number of threads
+     * @param defaultThreads number of threads if the variable is not set
+     * @return a pool of at most the configured number of threads
+     */
+    public static ExecutorService fixed(String name, String threadsEnv, int defaultThreads) {
+        int threads = Math.max(Integer.parseInt(System.getenv().getOrDefault(threadsEnv, String.valueOf(defaultThreads))), 1);
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,29 @@
+package it.gov.pagopa.reporting.util;
+
+import javax.xml.stream.XMLInputFactory;
+
+/**
+ * Shared, securely configured XML parser factory for the flow parser.
+ * <p>
+ * The factory is looked up and configured once per process.
+ */
+public final class XmlParserProvider {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = newXMLInputFactory();
+
+    private XmlParserProvider() {
+    }
+
+    public static XMLInputFactory getXMLInputFactory() {
+        return XML_INPUT_FACTORY;
+    }
+
+    private static XMLInputFactory newXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // to be compliant, completely disable DOCTYPE declaration and external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+}
@@ -0,0 +1,95 @@
+package it.gov.pagopa.reporting.client;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import it.gov.pagopa.reporting.exception.Cache4XXException;
+import it.gov.pagopa.reporting.exception.Cache5XXException;
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ApiConfigClientTest {
+
+    private final ApiConfigClient client = new ApiConfigClient();
+
+    @Test
+    void parsesTheCacheEntries() throws Exception {
+        String body = "{\"version\":\"1\",\"configurations\":{\"a\":[1,2]},"
+                + "\"creditorInstitutionStations\":{"
+                + "\"PA1_S1\":{\"creditor_institution_code\":\"PA1\",\"station_code\":\"S1\",\"segregation_code\":1},"
+                + "\"PA2_S1\":{\"creditor_institution_code\":\"PA2\",\"station_code\":\"S1\"}},"
+                + "\"stations\":{\"S1\":{\"station_code\":\"S1\",\"enabled\":true,\"broker_code\":\"B1\",\"password\":\"pwd\","
+                + "\"connection\":{\"ip\":\"127.0.0.1\"}}}}";
+
+        CacheResponse cache = client.executeCallToApiConfigCache(request(200, body));
+
+        assertEquals(2, cache.getCreditorInstitutionStations().size());
+        assertEquals("PA2", cache.getCreditorInstitutionStations().get(1).getCreditorInstitutionCode());
+        assertEquals(1, cache.getStations().size());
+        assertEquals("B1", cache.getStations().get(0).getBrokerCode());
+        assertTrue(cache.getStations().get(0).getEnabled());
+    }
+
+    @Test
+    void parsesALargeCache() throws Exception {
+        int stations = 5_000;
+        int creditorInstitutions = 40_000;
+        StringBuilder body = new StringBuilder("{\"creditorInstitutionStations\":{");
+        for (int i = 0; i < creditorInstitutions; i++) {
+            body.append(i > 0 ? "," : "").append("\"PA").append(i).append("\":{\"creditor_institution_code\":\"PA").append(i)
+                    .append("\",\"station_code\":\"S").append(i % stations).append("\",\"aux_digit\":3,\"mod4\":true}");
+        }
+        body.append("},\"stations\":{");
+        for (int s = 0; s < stations; s++) {
+            body.append(s > 0 ? "," : "").append("\"S").append(s).append("\":{\"station_code\":\"S").append(s)
+                    .append("\",\"enabled\":true,\"broker_code\":\"B").append(s).append("\",\"password\":\"pwd\",\"version\":2}");
+        }
+        body.append("}}");
+
+        CacheResponse cache = client.executeCallToApiConfigCache(request(200, body.toString()));
+
+        assertEquals(creditorInstitutions, cache.getCreditorInstitutionStations().size());
+        assertEquals(stations, cache.getStations().size());
+        assertEquals("S" + (stations - 1), cache.getStations().get(stations - 1).getStationCode());
+    }
+
+    @Test
+    void errors() throws IOException {
+        assertThrows(Cache5XXException.class, () -> client.executeCallToApiConfigCache(request(503, "")));
+        assertThrows(Cache4XXException.class, () -> client.executeCallToApiConfigCache(request(401, "")));
+    }
+
+    @Test
+    void rejectsACacheWithoutStations() {
+        assertThrows(JsonParseException.class, () -> client.executeCallToApiConfigCache(request(200, "{}")));
+        assertThrows(JsonParseException.class, () -> client.executeCallToApiConfigCache(request(200,
+                "{\"creditorInstitutionStations\":{}}")));
+        assertThrows(JsonParseException.class, () -> client.executeCallToApiConfigCache(request(200,
+                "{\"stations\":{},\"creditorInstitutionStations\":null}")));
+    }
+
+    @Test
+    void acceptsEmptyMaps() throws Exception {
+        CacheResponse cache = client.executeCallToApiConfigCache(request(200, "{\"creditorInstitutionStations\":{},\"stations\":{}}"));
+
+        assertTrue(cache.getCreditorInstitutionStations().isEmpty());
+        assertTrue(cache.getStations().isEmpty());
+    }
+
+    private static HttpRequest request(int status, String body) throws IOException {
+        MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                .setStatusCode(status)
+                .setContentType("application/json")
+                .setContent(body);
+        return new MockHttpTransport.Builder().setLowLevelHttpResponse(response).build()
+                .createRequestFactory().buildGetRequest(new GenericUrl("http://localhost/cache"));
+    }
+}
@@ -12,9 +12,16 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.*;
@@ -65,6 +72,109 @@ class ElaborateOptionsTest {
 
     }
 
+    @Test
+    void runStreamingTest() throws IOException {
+
+        when(context.getLogger()).thenReturn(Logger.getLogger("InfoLogging"));
+
+        ClassLoader classLoader = getClass().getClassLoader();
+        InputStream inputStream = classLoader.getResourceAsStream("dataflow##idPA##idflow.xml");
+        byte[] file = readFromInputStream(inputStream).getBytes();
+
+        OptionsService.OptionsBatchSink sink = mock(OptionsService.OptionsBatchSink.class);
+        doReturn(true).when(function).isStreamingEnabled();
+        doReturn(optionsService).when(function).getOptionsServiceInstance(any());
+        when(optionsService.getStreamingBatchSize()).thenReturn(2);
+        when(optionsService.openBatchSink("idPA", "idflow", "dataflow")).thenReturn(sink);
+
+        function.run(file, "dataflow##idPA##idflow.xml", context);
+
+        verify(sink, times(2)).accept(any());
+        verify(sink, times(1)).close();
+        verify(optionsService, never()).optionsProcessing(any(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    void runStreamingPartialFlowTest() throws IOException {
+
+        when(context.getLogger()).thenReturn(Logger.getLogger("InfoLogging"));
+
+        ClassLoader classLoader = getClass().getClassLoader();
+        InputStream inputStream = classLoader.getResourceAsStream("dataflow##idPA##idflow.xml");
+        String data = readFromInputStream(inputStream);
+        // broken after the first two options
+        int third = data.indexOf("<datiSingoliPagamenti>", data.indexOf("<datiSingoliPagamenti>", data.indexOf("<datiSingoliPagamenti>") + 1) + 1);
+        byte[] file = (data.substring(0, third) + "<datiSingoliPagamenti><broken").getBytes();
+
+        OptionsService.OptionsBatchSink sink = mock(OptionsService.OptionsBatchSink.class);
+        doReturn(true).when(function).isStreamingEnabled();
+        doReturn(optionsService).when(function).getOptionsServiceInstance(any());
+        when(optionsService.getStreamingBatchSize()).thenReturn(2);
+        when(optionsService.openBatchSink("idPA", "idflow", "dataflow")).thenReturn(sink);
+        when(sink.getReceived()).thenReturn(2);
+
+        function.run(file, "dataflow##idPA##idflow.xml", context);
+
+        // the batch parsed before the error is enqueued, and the partial flow is reported
+        verify(sink, times(1)).accept(any());
+        verify(sink, times(1)).close();
+        verify(sink, times(1)).getReceived();
+    }
+
+    @Test
+    void runQueueUnavailableTest() throws IOException {
+
+        when(context.getLogger()).thenReturn(Logger.getLogger("InfoLogging"));
+
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("dataflow##idPA##idflow.xml");
+        byte[] file = readFromInputStream(inputStream).getBytes();
+
+        doReturn(true).when(function).isStreamingEnabled();
+        doReturn(optionsService).when(function).getOptionsServiceInstance(any());
+        when(optionsService.openBatchSink("idPA", "idflow", "dataflow"))
+                .thenThrow(new IllegalStateException("Unable to open the options queue"));
+
+        // the options are not dropped: the runtime retries the blob
+        assertThrows(IllegalStateException.class, () -> function.run(file, "dataflow##idPA##idflow.xml", context));
+    }
+
+    @Test
+    void runDoesNotLogContentAtInfoTest() throws IOException {
+
+        Logger logger = Logger.getLogger("ContentLogging");
+        logger.setLevel(Level.INFO);
+        List<String> messages = new ArrayList<>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord logRecord) {
+                messages.add(logRecord.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        logger.addHandler(handler);
+        when(context.getLogger()).thenReturn(logger);
+
+        InputStream inputStream = getClass().getClassLoader().getResourceAsStream("dataflow##idPA##idflow.xml");
+        byte[] file = readFromInputStream(inputStream).getBytes();
+        doReturn(optionsService).when(function).getOptionsServiceInstance(logger);
+
+        try {
+            function.run(file, "dataflow##idPA##idflow.xml", context);
+        } finally {
+            logger.removeHandler(handler);
+        }
+
+        assertTrue(messages.contains("Flow blob dataflow##idPA##idflow.xml of " + file.length + " bytes"));
+        assertTrue(messages.stream().noneMatch(m -> m.contains("identificativoUnivocoVersamento")));
+    }
+
     @Test
     void getOptionsServiceIstanceTest() throws Exception {
 
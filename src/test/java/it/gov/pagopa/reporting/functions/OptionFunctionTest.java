@@ -1,18 +1,30 @@
 package it.gov.pagopa.reporting.functions;
 
+import com.azure.storage.blob.models.BlobStorageException;
 import com.microsoft.azure.functions.ExecutionContext;
+import it.gov.pagopa.reporting.models.OptionsMessage;
+import it.gov.pagopa.reporting.models.PaymentOption;
 import it.gov.pagopa.reporting.models.RetryStep;
 import it.gov.pagopa.reporting.service.GPDService;
+import it.gov.pagopa.reporting.service.OptionsService;
+import it.gov.pagopa.reporting.util.Deadline;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
 import java.util.logging.Logger;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 
@@ -72,6 +84,117 @@ class OptionFunctionTest {
         verify(context, times(1)).getLogger();
     }
 
+    @Test
+    void runClaimCheckTest() throws Exception {
+
+        Logger logger = Logger.getLogger("InfoLogging");
+
+        String message = "{\"idPA\":\"77777777777\",\"idFlow\":\"00595780131\",\"flowDate\":1627293600000,\"retryCount\":0,"
+                + "\"optionsBlob\":\"chunk.csv\",\"optionsOffset\":0,\"optionsLength\":40}";
+        when(context.getLogger()).thenReturn(logger);
+
+        OptionsService optionsService = mock(OptionsService.class);
+        when(optionsService.loadOptions(any())).thenReturn(List.of(
+                new PaymentOption("09909090909", 1, RetryStep.NONE.name()),
+                new PaymentOption("09909090910", 1, RetryStep.NONE.name())));
+        doReturn(optionsService).when(function).getOptionQueueService(any());
+        when(gpdServiceFake.setReport(anyString(), any(), any(), any())).thenReturn(RetryStep.DONE);
+        when(function.getGPDServiceInstance()).thenReturn(gpdServiceFake);
+
+        function.run(message, context);
+
+        verify(gpdServiceFake, times(2)).setReport(anyString(), any(), any(), any());
+        verify(optionsService, never()).insertMessage(any());
+    }
+
+    @Test
+    void runClaimCheckLoadErrorTest() throws Exception {
+
+        Logger logger = Logger.getLogger("InfoLogging");
+
+        String message = "{\"idPA\":\"77777777777\",\"idFlow\":\"00595780131\",\"flowDate\":1627293600000,\"retryCount\":0,"
+                + "\"optionsBlob\":\"chunk.csv\",\"optionsOffset\":0,\"optionsLength\":40}";
+        when(context.getLogger()).thenReturn(logger);
+
+        OptionsService optionsService = mock(OptionsService.class);
+        when(optionsService.loadOptions(any())).thenThrow(new IOException("blob not found"));
+        doReturn(optionsService).when(function).getOptionQueueService(any());
+
+        // the message must go back to the runtime to be retried
+        assertThrows(UncheckedIOException.class, () -> function.run(message, context));
+        verify(gpdServiceFake, never()).setReport(anyString(), any(), any(), any());
+    }
+
+    @Test
+    void runClaimCheckStorageErrorTest() throws Exception {
+
+        Logger logger = Logger.getLogger("InfoLogging");
+
+        String message = "{\"idPA\":\"77777777777\",\"idFlow\":\"00595780131\",\"flowDate\":1627293600000,\"retryCount\":0,"
+                + "\"optionsBlob\":\"chunk.csv\",\"optionsOffset\":0,\"optionsLength\":40}";
+        when(context.getLogger()).thenReturn(logger);
+
+        OptionsService optionsService = mock(OptionsService.class);
+        when(optionsService.loadOptions(any())).thenThrow(new BlobStorageException("throttled", null, null));
+        doReturn(optionsService).when(function).getOptionQueueService(any());
+
+        // a runtime storage error isn't swallowed either: the options of the range exist nowhere else
+        assertThrows(UncheckedIOException.class, () -> function.run(message, context));
+        verify(gpdServiceFake, never()).setReport(anyString(), any(), any(), any());
+    }
+
+    @Test
+    void runDeferredTest() {
+
+        Logger logger = Logger.getLogger("InfoLogging");
+
+        String message = "{\"idPA\":\"77777777777\",\"idFlow\":\"00595780131\",\"flowDate\":1627293600000,\"retryCount\":1,"
+                + "\"paymentOptions\":[{\"optionId\":\"09909090909\",\"transferId\":\"1\"},{\"optionId\":\"09909090909\",\"transferId\":\"2\"}]}";
+        when(context.getLogger()).thenReturn(logger);
+
+        OptionsService optionsService = mock(OptionsService.class);
+        doReturn(optionsService).when(function).getOptionQueueService(any());
+        when(gpdServiceFake.setReport(anyString(), any(), any(), any())).thenReturn(RetryStep.DEFERRED);
+        when(function.getGPDServiceInstance()).thenReturn(gpdServiceFake);
+        when(function.getMaxRetry()).thenReturn(1);
+
+        function.run(message, context);
+
+        // deferred options don't spend an attempt, even when the max is reached
+        int deferredDelay = function.getDeferredDelay();
+        ArgumentCaptor<OptionsMessage> captor = ArgumentCaptor.forClass(OptionsMessage.class);
+        verify(optionsService).insertMessage(captor.capture(), eq(deferredDelay));
+        verify(optionsService, never()).insertMessage(any());
+        assertEquals(1, captor.getValue().getRetryCount());
+        assertEquals(2, captor.getValue().getPaymentOptions().size());
+    }
+
+    @Test
+    void runOutOfTimeTest() {
+
+        Logger logger = Logger.getLogger("InfoLogging");
+
+        String message = "{\"idPA\":\"77777777777\",\"idFlow\":\"00595780131\",\"flowDate\":1627293600000,\"retryCount\":0,"
+                + "\"paymentOptions\":[{\"optionId\":\"09909090909\",\"transferId\":\"1\"},{\"optionId\":\"09909090909\",\"transferId\":\"2\"}]}";
+        when(context.getLogger()).thenReturn(logger);
+
+        OptionsService optionsService = mock(OptionsService.class);
+        doReturn(optionsService).when(function).getOptionQueueService(any());
+        doReturn(Deadline.after(0)).when(function).getDeadline();
+        when(gpdServiceFake.getCallTimeoutMillis()).thenReturn(1000L);
+        when(function.getGPDServiceInstance()).thenReturn(gpdServiceFake);
+
+        function.run(message, context);
+
+        // no call is started past the deadline: the options go back to the queue without spending an attempt
+        int deferredDelay = function.getDeferredDelay();
+        ArgumentCaptor<OptionsMessage> captor = ArgumentCaptor.forClass(OptionsMessage.class);
+        verify(gpdServiceFake, never()).setReport(anyString(), any(), any(), any());
+        verify(optionsService).insertMessage(captor.capture(), eq(deferredDelay));
+        assertEquals(0, captor.getValue().getRetryCount());
+        assertEquals(2, captor.getValue().getPaymentOptions().size());
+    }
+
     @Test
     void runKO() {
 
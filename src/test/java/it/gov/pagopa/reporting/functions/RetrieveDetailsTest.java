@@ -53,7 +53,7 @@ class RetrieveDetailsTest {
         function.run(message, context);
 
         verify(context, times(1)).getLogger();
-        verify(flowService, times(1)).flowsXmlDownloading(any(), anyString(), anyInt());
+        verify(flowService, times(1)).flowsXmlDownloading(any(), anyString(), anyInt(), any());
     }
     
     @Test
@@ -85,7 +85,7 @@ class RetrieveDetailsTest {
         function.run(message, context);
 
         verify(context, times(1)).getLogger();
-        verify(instance, times(1)).flowsXmlDownloading(any(), anyString(), anyInt());
+        verify(instance, times(1)).flowsXmlDownloading(any(), anyString(), anyInt(), any());
     }
 
     @Test
@@ -0,0 +1,60 @@
+package it.gov.pagopa.reporting.models;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PaymentOptionBufferTest {
+
+    @Test
+    void addAndGet() {
+        PaymentOptionBuffer buffer = new PaymentOptionBuffer(1);
+        buffer.add("iuv1", 1, RetryStep.NONE);
+        buffer.add("iuv1", 2, RetryStep.RETRY);
+        buffer.add("iuv2", 1, null);
+        buffer.add(null, 3, RetryStep.ERROR);
+
+        assertEquals(4, buffer.size());
+        assertEquals("iuv1", buffer.get(1).getOptionId());
+        assertEquals(2, buffer.get(1).getTransferId());
+        assertEquals(RetryStep.RETRY.name(), buffer.get(1).getRetryAction());
+        assertEquals("iuv2", buffer.get(2).getOptionId());
+        assertNull(buffer.get(2).getRetryAction());
+        assertNull(buffer.get(3).getOptionId());
+        assertThrows(IndexOutOfBoundsException.class, () -> buffer.get(4));
+    }
+
+    @Test
+    void growsAndMatchesArrayList() throws Exception {
+        PaymentOptionBuffer buffer = new PaymentOptionBuffer();
+        List<PaymentOption> list = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            // multi-byte characters to exercise the UTF-8 packing
+            PaymentOption option = new PaymentOption("0203026756500" + (i / 3) + "è", i % 3 + 1, RetryStep.NONE.name());
+            list.add(option);
+            assertTrue(buffer.add(option));
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.writeValueAsString(list), mapper.writeValueAsString(buffer));
+
+        List<List<PaymentOption>> partitions = Lists.partition(buffer, 7);
+        assertEquals(Lists.partition(list, 7).size(), partitions.size());
+        assertEquals(mapper.writeValueAsString(Lists.partition(list, 7).get(42)), mapper.writeValueAsString(partitions.get(42)));
+    }
+
+    @Test
+    void viewsAreDetached() {
+        PaymentOptionBuffer buffer = new PaymentOptionBuffer();
+        buffer.add("iuv1", 1, RetryStep.NONE);
+
+        buffer.get(0).setRetryAction(RetryStep.DONE.name());
+
+        assertEquals(RetryStep.NONE.name(), buffer.get(0).getRetryAction());
+    }
+}
@@ -0,0 +1,82 @@
+package it.gov.pagopa.reporting.models.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class StationIndexTest {
+
+    @Test
+    void resolvesTheFirstEnabledStation() {
+        CacheResponse cache = CacheResponse.builder()
+                .stations(List.of(
+                        station("S1", false),
+                        station("S2", true),
+                        station("S3", true),
+                        station("S4", null)))
+                .creditorInstitutionStations(List.of(
+                        ciStation("PA1", "S3"),
+                        ciStation("PA1", "S2"),
+                        ciStation("PA1", "S1"),
+                        ciStation("PA2", "S1"),
+                        ciStation("PA3", "S4"),
+                        ciStation("PA4", "S3")))
+                .build();
+
+        StationIndex index = StationIndex.of(cache);
+
+        // stations list order, not creditor institution stations order
+        assertEquals("S2", index.getStation("PA1").map(Station::getStationCode).orElse(null));
+        assertFalse(index.getStation("PA2").isPresent());
+        assertFalse(index.getStation("PA3").isPresent());
+        assertEquals("S3", index.getStation("PA4").map(Station::getStationCode).orElse(null));
+        assertFalse(index.getStation("PA5").isPresent());
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    void matchesTheLinearScan() {
+        List<Station> stations = new ArrayList<>();
+        List<CreditorInstitutionStation> ciStations = new ArrayList<>();
+        for (int s = 0; s < 2_000; s++) {
+            stations.add(station("S" + s, s % 7 != 0));
+        }
+        for (int ci = 0; ci < 10_000; ci++) {
+            ciStations.add(ciStation("PA" + ci, "S" + (ci * 31 % 2_000)));
+            ciStations.add(ciStation("PA" + ci, "S" + (ci * 17 % 2_000)));
+        }
+        CacheResponse cache = CacheResponse.builder().stations(stations).creditorInstitutionStations(ciStations).build();
+
+        StationIndex index = StationIndex.of(cache);
+
+        for (int ci = 0; ci < 10_000; ci += 97) {
+            String idPa = "PA" + ci;
+            assertEquals(linearScan(cache, idPa), index.getStation(idPa));
+        }
+    }
+
+    // the lookup made before the index
+    private static Optional<Station> linearScan(CacheResponse cache, String idPa) {
+        List<String> stationPa = cache.getCreditorInstitutionStations().stream()
+                .filter(ciStation -> ciStation.getCreditorInstitutionCode().equals(idPa))
+                .map(CreditorInstitutionStation::getStationCode).collect(Collectors.toList());
+        return cache.getStations().stream()
+                .filter(station -> stationPa.contains(station.getStationCode()))
+                .filter(Station::getEnabled)
+                .findFirst();
+    }
+
+    private static Station station(String code, Boolean enabled) {
+        return Station.builder().stationCode(code).brokerCode("broker" + code).password("pwd").enabled(enabled).build();
+    }
+
+    private static CreditorInstitutionStation ciStation(String ci, String station) {
+        return CreditorInstitutionStation.builder().creditorInstitutionCode(ci).stationCode(station).build();
+    }
+}
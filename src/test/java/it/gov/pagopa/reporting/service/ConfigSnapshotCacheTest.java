@@ -0,0 +1,151 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.exception.AppException;
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
+import it.gov.pagopa.reporting.models.cache.Station;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class ConfigSnapshotCacheTest {
+
+    @Test
+    void servesTheLastGoodSnapshotWhenRefreshFails() throws AppException {
+        AtomicLong now = new AtomicLong();
+        ConfigSnapshotCache cache = new ConfigSnapshotCache(60, 10, 5, now::get, null);
+        AtomicInteger downloads = new AtomicInteger();
+        Callable<CacheResponse> loader = () -> {
+            if (downloads.incrementAndGet() > 1) {
+                throw new IOException("api config down");
+            }
+            return cacheResponse("S1");
+        };
+
+        ConfigSnapshotCache.Snapshot snapshot = cache.get(loader);
+        assertEquals("S1", snapshot.getStationIndex().getStation("PA").map(Station::getStationCode).orElse(null));
+        assertEquals(ConfigSnapshotCache.RefreshOutcome.SUCCESS, cache.getLastRefreshOutcome());
+
+        now.set(TimeUnit.SECONDS.toNanos(120));
+        cache.refresh();
+
+        assertSame(snapshot, cache.get(loader));
+        assertEquals(ConfigSnapshotCache.RefreshOutcome.FAILURE, cache.getLastRefreshOutcome());
+        assertEquals(120_000, cache.getSnapshotAgeMillis());
+        assertEquals(1, cache.getRefreshSuccesses());
+        assertEquals(1, cache.getRefreshFailures());
+    }
+
+    @Test
+    void firstLoadFailure() {
+        ConfigSnapshotCache cache = new ConfigSnapshotCache(60, 10, 5, System::nanoTime, null);
+
+        assertThrows(AppException.class, () -> cache.get(() -> {
+            throw new IOException("api config down");
+        }));
+        assertEquals(-1, cache.getSnapshotAgeMillis());
+    }
+
+    @Test
+    void concurrentReadersShareTheFirstDownload() {
+        ConfigSnapshotCache cache = new ConfigSnapshotCache(60, 10, 5, System::nanoTime, null);
+        AtomicInteger downloads = new AtomicInteger();
+        Callable<CacheResponse> loader = () -> {
+            downloads.incrementAndGet();
+            Thread.sleep(50);
+            return cacheResponse("S1");
+        };
+
+        CompletableFuture<?>[] readers = new CompletableFuture<?>[8];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    cache.get(loader);
+                } catch (AppException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        CompletableFuture.allOf(readers).join();
+
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    void refreshesAheadInBackground() throws Exception {
+        // refreshed 1 second after the download, 1 second before it expires
+        ConfigSnapshotCache cache = new ConfigSnapshotCache(2, 1, 1);
+        AtomicInteger downloads = new AtomicInteger();
+        Callable<CacheResponse> loader = () -> cacheResponse("S" + downloads.incrementAndGet());
+
+        ConfigSnapshotCache.Snapshot first = cache.get(loader);
+        long timeout = System.currentTimeMillis() + 5_000;
+        while (cache.getRefreshSuccesses() < 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(cache.getRefreshSuccesses() >= 2);
+        assertEquals("S1", first.getStationIndex().getStation("PA").map(Station::getStationCode).orElse(null));
+        assertTrue(cache.get(loader).getStationIndex().getStation("PA").map(Station::getStationCode).orElse("").compareTo("S1") > 0);
+    }
+
+    @Test
+    void ageIsCountedFromTheDownload() throws AppException {
+        AtomicLong now = new AtomicLong();
+        ConfigSnapshotCache cache = new ConfigSnapshotCache(60, 10, 5, now::get, null);
+        long downloadedAt = System.currentTimeMillis() - 30_000;
+
+        cache.getLoaded(() -> ConfigSnapshotCache.Loaded.of(cacheResponse("S1"), downloadedAt, false));
+
+        long age = cache.getSnapshotAgeMillis();
+        assertTrue(age >= 30_000 && age < 35_000, "age " + age);
+        assertEquals(ConfigSnapshotCache.RefreshOutcome.SUCCESS, cache.getLastRefreshOutcome());
+    }
+
+    @Test
+    void staleContentIsRetried() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        ConfigSnapshotCache cache = new ConfigSnapshotCache(60, 10, 5, System::nanoTime, scheduler);
+
+        cache.getLoaded(() -> ConfigSnapshotCache.Loaded.of(cacheResponse("S1"), System.currentTimeMillis(), true));
+        assertEquals(ConfigSnapshotCache.RefreshOutcome.FAILURE, cache.getLastRefreshOutcome());
+        cache.set(null);
+        // a download 40 seconds old
+        cache.getLoaded(() -> ConfigSnapshotCache.Loaded.of(cacheResponse("S1"), System.currentTimeMillis() - 40_000, false));
+
+        ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler, times(2)).schedule(any(Runnable.class), delays.capture(), eq(TimeUnit.NANOSECONDS));
+        // after CACHE_REFRESH_RETRY_SEC, then when the download is ttl - ahead old
+        assertEquals(TimeUnit.SECONDS.toNanos(5), delays.getAllValues().get(0));
+        long delay = TimeUnit.NANOSECONDS.toSeconds(delays.getAllValues().get(1));
+        assertTrue(delay > 5 && delay <= 10, "delay " + delay);
+        assertEquals(ConfigSnapshotCache.RefreshOutcome.SUCCESS, cache.getLastRefreshOutcome());
+        assertEquals(1, cache.getRefreshFailures());
+    }
+
+    private static CacheResponse cacheResponse(String stationCode) {
+        return CacheResponse.builder()
+                .stations(List.of(Station.builder().stationCode(stationCode).brokerCode("broker").password("pwd").enabled(true).build()))
+                .creditorInstitutionStations(List.of(CreditorInstitutionStation.builder()
+                        .creditorInstitutionCode("PA").stationCode(stationCode).build()))
+                .build();
+    }
+}
@@ -0,0 +1,203 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.util.Deadline;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FlowDownloadDispatcherTest {
+
+    @Test
+    void downloadsEveryFlow() {
+        Set<Integer> downloaded = ConcurrentHashMap.newKeySet();
+
+        new FlowDownloadDispatcher(4, 0).dispatch("broker|all", flows(30), Deadline.none(), 1000,
+                downloaded::add, flow -> { throw new AssertionError("deferred " + flow); });
+
+        assertEquals(30, downloaded.size());
+    }
+
+    @Test
+    void boundsConcurrentDownloads() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        new FlowDownloadDispatcher(4, 0).dispatch("broker|message", flows(40), Deadline.none(), 1000,
+                slow(running, maxRunning), flow -> { });
+
+        assertTrue(maxRunning.get() <= 4);
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    @Test
+    void boundsConcurrentDownloadsOfStation() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        FlowDownloadDispatcher dispatcher = new FlowDownloadDispatcher(4, 2);
+
+        // two messages of the same station
+        CompletableFuture<Void> other = CompletableFuture.runAsync(() -> dispatcher.dispatch("broker|station", flows(20),
+                Deadline.none(), 1000, slow(running, maxRunning), flow -> { }));
+        dispatcher.dispatch("broker|station", flows(20), Deadline.none(), 1000, slow(running, maxRunning), flow -> { });
+        other.join();
+
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    void defersFlowsOutOfTime() {
+        List<Integer> deferred = new ArrayList<>();
+
+        new FlowDownloadDispatcher(1, 0).dispatch("broker|late", flows(3), Deadline.after(10), 1000,
+                flow -> { throw new AssertionError("downloaded " + flow); }, deferred::add);
+
+        assertEquals(List.of(0, 1, 2), deferred);
+    }
+
+    @Test
+    void defersFlowsNotStartedBeforeTheDeadline() {
+        CountDownLatch release = new CountDownLatch(1);
+        Set<Integer> downloaded = ConcurrentHashMap.newKeySet();
+        List<Integer> deferred = new ArrayList<>();
+
+        long start = System.nanoTime();
+        new FlowDownloadDispatcher(2, 0).dispatch("broker|stuck", flows(4), Deadline.after(200), 0, flow -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            downloaded.add(flow);
+        }, deferred::add);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        release.countDown();
+
+        assertTrue(elapsed < 2000, "waited " + elapsed);
+        // the two running downloads are left to complete
+        assertEquals(List.of(2, 3), deferred);
+    }
+
+    @Test
+    void defersFlowsWhileStationBusy() throws InterruptedException {
+        FlowDownloadDispatcher dispatcher = new FlowDownloadDispatcher(1, 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        CompletableFuture<Void> busy = CompletableFuture.runAsync(() -> dispatcher.dispatch("broker|busy", flows(1),
+                Deadline.none(), 0, flow -> {
+                    started.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, flow -> { }));
+        started.await();
+        List<Integer> deferred = new ArrayList<>();
+
+        dispatcher.dispatch("broker|busy", flows(2), Deadline.after(1050), 1000,
+                flow -> { throw new AssertionError("downloaded " + flow); }, deferred::add);
+        done.countDown();
+        busy.join();
+
+        assertEquals(List.of(0, 1), deferred);
+    }
+
+    @Test
+    void sequentialRunsOnCallerThread() {
+        Thread caller = Thread.currentThread();
+        AtomicInteger downloaded = new AtomicInteger();
+
+        new FlowDownloadDispatcher(1, 0).dispatch("broker|caller", flows(3), Deadline.none(), 1000, flow -> {
+            assertEquals(caller, Thread.currentThread());
+            downloaded.incrementAndGet();
+        }, flow -> { });
+
+        assertEquals(3, downloaded.get());
+    }
+
+    @Test
+    void failedDownloadDoesNotStopTheOtherFlows() {
+        for (int concurrency : new int[]{1, 4}) {
+            Set<Integer> downloaded = ConcurrentHashMap.newKeySet();
+            List<Integer> failed = new CopyOnWriteArrayList<>();
+
+            new FlowDownloadDispatcher(concurrency, 2).dispatch("broker|error", flows(20), Deadline.none(), 1000, flow -> {
+                if (flow == 7) {
+                    throw new IllegalArgumentException("nodo");
+                }
+                downloaded.add(flow);
+            }, flow -> { throw new AssertionError("deferred " + flow); }, (flow, e) -> {
+                assertEquals("nodo", e.getMessage());
+                failed.add(flow);
+            });
+
+            assertEquals(List.of(7), failed);
+            assertEquals(19, downloaded.size());
+        }
+    }
+
+    @Test
+    void defersFailedDownloadsByDefault() {
+        List<Integer> deferred = new CopyOnWriteArrayList<>();
+
+        new FlowDownloadDispatcher(4, 0).dispatch("broker|defer", flows(10), Deadline.none(), 1000, flow -> {
+            if (flow % 3 == 0) {
+                throw new IllegalStateException("upload");
+            }
+        }, deferred::add);
+
+        assertEquals(Set.of(0, 3, 6, 9), Set.copyOf(deferred));
+    }
+
+    @Test
+    void rethrowsErrorsAfterDeferringTheFlowsNotStarted() {
+        FlowDownloadDispatcher dispatcher = new FlowDownloadDispatcher(2, 0);
+        List<Integer> flows = flows(20);
+        Set<Integer> downloaded = ConcurrentHashMap.newKeySet();
+        Set<Integer> deferred = ConcurrentHashMap.newKeySet();
+
+        assertThrows(OutOfMemoryError.class, () -> dispatcher.dispatch("broker|fatal", flows, Deadline.none(), 1000, flow -> {
+            if (flow == 5) {
+                throw new OutOfMemoryError("download");
+            }
+            downloaded.add(flow);
+        }, deferred::add));
+
+        // every flow is either downloaded, deferred or the failed one
+        assertEquals(19, downloaded.size() + deferred.size());
+        assertTrue(!downloaded.contains(5) && !deferred.contains(5));
+    }
+
+    private static Consumer<Integer> slow(AtomicInteger running, AtomicInteger maxRunning) {
+        return flow -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+        };
+    }
+
+    private static List<Integer> flows(int size) {
+        List<Integer> flows = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            flows.add(i);
+        }
+        return flows;
+    }
+}
@@ -14,6 +14,7 @@ import com.sun.istack.localization.Localizable;
 import com.sun.istack.localization.LocalizableMessage;
 import com.sun.xml.ws.client.ClientTransportException;
 import it.gov.pagopa.reporting.entities.FlowEntity;
+import it.gov.pagopa.reporting.models.NodoChiediFlussoRendicontazioneResult;
 import it.gov.pagopa.reporting.servicewsdl.FaultBean;
 import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
 import org.junit.ClassRule;
@@ -87,8 +88,8 @@ class FlowServiceIntegrationTest {
         InputStream mockedInputStream = new ByteArrayInputStream("Mocked data".getBytes());
         Mockito.when(mockDataHandler.getInputStream()).thenReturn(mockedInputStream);
 
-        doReturn(mockDataHandler).when(nodeService)
-                .getNodoChiediElencoFlussiRendicontazioneXmlReporting();
+        doReturn(new NodoChiediFlussoRendicontazioneResult(null, mockDataHandler)).when(nodeService)
+                .callNodoChiediFlussoRendicontazione(anyString(), anyString(), any());
 
         doReturn(nodeService).when(flowsService).getNodeServiceInstance();
 
@@ -136,7 +137,8 @@ class FlowServiceIntegrationTest {
                 "container", "queue", "flows", 1, 60, 0, logger));
 
         NodeService nodeService = mock(NodeService.class);
-        doReturn(mock(FaultBean.class)).when(nodeService).getNodoChiediFlussoRendicontazioneFault();
+        doReturn(new NodoChiediFlussoRendicontazioneResult(mock(FaultBean.class), null)).when(nodeService)
+                .callNodoChiediFlussoRendicontazione(anyString(), anyString(), any());
 
         doReturn(nodeService).when(flowsService).getNodeServiceInstance();
 
@@ -174,7 +176,7 @@ class FlowServiceIntegrationTest {
 
         NodeService nodeService = mock(NodeService.class);
 
-        doThrow(new ClientTransportException(new LocalizableMessage("", null, "",null))).when(nodeService).callNodoChiediFlussoRendicontazione(anyString(), anyString());
+        doThrow(new ClientTransportException(new LocalizableMessage("", null, "",null))).when(nodeService).callNodoChiediFlussoRendicontazione(anyString(), anyString(), any());
 
         doReturn(nodeService).when(flowsService).getNodeServiceInstance();
 
@@ -211,7 +213,8 @@ class FlowServiceIntegrationTest {
                 "container", "queue", "flows",1, 60, 0, logger));
 
         NodeService nodeService = mock(NodeService.class);
-        doReturn(mock(DataHandler.class)).when(nodeService).getNodoChiediElencoFlussiRendicontazioneXmlReporting();
+        doReturn(new NodoChiediFlussoRendicontazioneResult(null, mock(DataHandler.class))).when(nodeService)
+                .callNodoChiediFlussoRendicontazione(anyString(), anyString(), any());
         doThrow(IOException.class).when(flowsService).saveBlob(any(), anyString(), any());
 
         doReturn(nodeService).when(flowsService).getNodeServiceInstance();
@@ -249,7 +252,7 @@ class FlowServiceIntegrationTest {
 
         NodeService nodeService = mock(NodeService.class);
 
-        doThrow(new ClientTransportException(new LocalizableMessage("", null, "",null))).when(nodeService).callNodoChiediFlussoRendicontazione(anyString(), anyString());
+        doThrow(new ClientTransportException(new LocalizableMessage("", null, "",null))).when(nodeService).callNodoChiediFlussoRendicontazione(anyString(), anyString(), any());
 
         doReturn(nodeService).when(flowsService).getNodeServiceInstance();
 
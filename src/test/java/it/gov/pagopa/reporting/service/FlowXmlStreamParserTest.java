@@ -0,0 +1,118 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import org.junit.jupiter.api.Test;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FlowXmlStreamParserTest {
+
+    @Test
+    void parseSameAsSaxParser() throws Exception {
+        byte[] content;
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream("dataflow##idPA##idflow.xml")) {
+            content = is.readAllBytes();
+        }
+
+        List<PaymentOption> options = new FlowXmlStreamParser().parse(new ByteArrayInputStream(content));
+
+        assertSameOptions(parseWithSax(content), options);
+        assertEquals(3, options.size());
+        assertEquals("02030267565002997", options.get(0).getOptionId());
+        assertEquals(2, options.get(0).getTransferId());
+        assertEquals(RetryStep.NONE.name(), options.get(0).getRetryAction());
+    }
+
+    @Test
+    void parseLargeFlow() throws Exception {
+        StringBuilder xml = new StringBuilder("<FlussoRiversamento xmlns=\"http://www.digitpa.gov.it/schemas/2011/Pagamenti/\">");
+        for (int i = 0; i < 10000; i++) {
+            xml.append("<datiSingoliPagamenti><identificativoUnivocoVersamento>IUV").append(i)
+                    .append("</identificativoUnivocoVersamento><indiceDatiSingoloPagamento>").append(i % 5 + 1)
+                    .append("</indiceDatiSingoloPagamento></datiSingoliPagamenti>");
+        }
+        xml.append("</FlussoRiversamento>");
+        byte[] content = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        List<PaymentOption> options = new FlowXmlStreamParser().parse(new ByteArrayInputStream(content));
+
+        assertSameOptions(parseWithSax(content), options);
+        assertEquals(10000, options.size());
+    }
+
+    @Test
+    void parseInBatches() throws Exception {
+        byte[] content;
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream("dataflow##idPA##idflow.xml")) {
+            content = is.readAllBytes();
+        }
+        List<List<PaymentOption>> batches = new ArrayList<>();
+
+        int parsed = new FlowXmlStreamParser().parse(new ByteArrayInputStream(content), 2, batches::add);
+
+        assertEquals(3, parsed);
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertEquals(1, batches.get(1).size());
+        assertEquals("02030267565002998", batches.get(1).get(0).getOptionId());
+    }
+
+    @Test
+    void parseInvalidXml() {
+        byte[] content = "<FlussoRiversamento><datiSingoliPagamenti>".getBytes(StandardCharsets.UTF_8);
+
+        FlowXmlStreamParser parser = new FlowXmlStreamParser();
+        assertThrows(XMLStreamException.class, () -> parser.parse(new ByteArrayInputStream(content)));
+    }
+
+    @Test
+    void parseRejectsDoctype() {
+        byte[] content = ("<?xml version=\"1.0\"?><!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>"
+                + "<FlussoRiversamento><datiSingoliPagamenti><identificativoUnivocoVersamento>&xxe;"
+                + "</identificativoUnivocoVersamento><indiceDatiSingoloPagamento>1</indiceDatiSingoloPagamento>"
+                + "</datiSingoliPagamenti></FlussoRiversamento>").getBytes(StandardCharsets.UTF_8);
+
+        FlowXmlStreamParser parser = new FlowXmlStreamParser();
+        assertThrows(XMLStreamException.class, () -> parser.parse(new ByteArrayInputStream(content)));
+    }
+
+    @Test
+    void parseMatchesTagsIgnoringCase() throws Exception {
+        byte[] content = ("<FlussoRiversamento><datiSingoliPagamenti>"
+                + "<IdentificativoUnivocoVersamento>IUV1</IdentificativoUnivocoVersamento>"
+                + "<INDICEDATISINGOLOPAGAMENTO>3</INDICEDATISINGOLOPAGAMENTO>"
+                + "</datiSingoliPagamenti></FlussoRiversamento>").getBytes(StandardCharsets.UTF_8);
+
+        List<PaymentOption> options = new FlowXmlStreamParser().parse(new ByteArrayInputStream(content));
+
+        assertSameOptions(parseWithSax(content), options);
+        assertEquals(1, options.size());
+        assertEquals("IUV1", options.get(0).getOptionId());
+        assertEquals(3, options.get(0).getTransferId());
+    }
+
+    private List<PaymentOption> parseWithSax(byte[] content) throws Exception {
+        FlowXmlParser handler = new FlowXmlParser();
+        SAXParserFactory.newInstance().newSAXParser().parse(new ByteArrayInputStream(content), handler);
+        return handler.getOptions();
+    }
+
+    private void assertSameOptions(List<PaymentOption> expected, List<PaymentOption> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getOptionId(), actual.get(i).getOptionId());
+            assertEquals(expected.get(i).getTransferId(), actual.get(i).getTransferId());
+            assertEquals(expected.get(i).getRetryAction(), actual.get(i).getRetryAction());
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package it.gov.pagopa.reporting.service;
+
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobClientBuilder;
+import com.azure.storage.common.policy.RequestRetryOptions;
+import com.azure.storage.common.policy.RetryPolicyType;
+import it.gov.pagopa.reporting.exception.NodePortUnavailableException;
+import it.gov.pagopa.reporting.servicewsdl.TipoIdRendicontazione;
+import it.gov.pagopa.reporting.util.Deadline;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.xml.datatype.DatatypeFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class FlowsServiceTest {
+
+    private static final int BLOCK_SIZE = 256 * 1024;
+    private static final int CONCURRENCY = 2;
+
+    Logger logger = Logger.getLogger("testlogging");
+
+    @Test
+    void saveBlobStreamsLargeFlowInBoundedMemory() throws Exception {
+        long flowSize = 64L * 1024 * 1024;
+        FakeStorage storage = new FakeStorage();
+        SyntheticFlow xml = new SyntheticFlow(flowSize, storage);
+        FlowsService flowsService = this.flowsService(storage);
+
+        flowsService.saveBlob(flow(), "idPA", new DataHandler(new StreamDataSource(xml)));
+
+        assertEquals(flowSize, storage.received.get());
+        assertEquals(flowSize / BLOCK_SIZE, storage.stagedBlocks.get());
+        assertEquals(1, storage.commits.get());
+        assertTrue(xml.closed);
+        // the flow is never buffered whole: what is read and not yet uploaded is bounded by the blocks in flight,
+        // plus the ones the upload is filling and prefetching
+        assertTrue(xml.maxUnsent <= (long) BLOCK_SIZE * (CONCURRENCY + 3),
+                "read ahead of the upload: " + xml.maxUnsent + " bytes");
+    }
+
+    @Test
+    void saveBlobSmallFlowInSingleUpload() throws Exception {
+        FakeStorage storage = new FakeStorage();
+        SyntheticFlow xml = new SyntheticFlow(1024, storage);
+        FlowsService flowsService = this.flowsService(storage);
+
+        flowsService.saveBlob(flow(), "idPA", new DataHandler(new StreamDataSource(xml)));
+
+        assertEquals(1024, storage.received.get());
+        assertEquals(0, storage.stagedBlocks.get());
+        assertEquals(1, storage.singleUploads.get());
+    }
+
+    @Test
+    void saveBlobReadErrorTest() throws Exception {
+        FakeStorage storage = new FakeStorage();
+        InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken");
+            }
+        };
+        FlowsService flowsService = this.flowsService(storage);
+        DataHandler xmlReporting = new DataHandler(new StreamDataSource(broken));
+        TipoIdRendicontazione flow = flow();
+
+        assertThrows(IOException.class, () -> flowsService.saveBlob(flow, "idPA", xmlReporting));
+    }
+
+    @Test
+    void deferredFlowUsesTheDeferDelay() throws Exception {
+        FlowsService flowsService = spy(new FlowsService(null, "broker", "station", "password",
+                "container", "queue", "flows", 5, 86400, 3600, logger));
+        doReturn(mock(NodeService.class)).when(flowsService).getNodeServiceInstance();
+        doNothing().when(flowsService).reQueuingMessage(anyString(), any(), anyInt(), anyInt());
+        TipoIdRendicontazione flow = flow();
+
+        // out of time: the flow is re-queued without spending a retry, after the defer delay instead of a backoff
+        flowsService.flowsXmlDownloading(List.of(flow), "idPA", 3, Deadline.after(0));
+
+        verify(flowsService).reQueuingMessage("idPA", flow, 2, 120);
+        verify(flowsService, never()).reQueuingMessage(anyString(), any(), anyInt());
+    }
+
+    @Test
+    void busyStationPortsDeferTheFlow() throws Exception {
+        FlowsService flowsService = spy(new FlowsService(null, "broker", "station", "password",
+                "container", "queue", "flows", 5, 86400, 3600, logger));
+        NodeService nodeService = mock(NodeService.class);
+        when(nodeService.callNodoChiediFlussoRendicontazione(anyString(), anyString(), any()))
+                .thenThrow(new NodePortUnavailableException("busy"));
+        doReturn(nodeService).when(flowsService).getNodeServiceInstance();
+        doNothing().when(flowsService).reQueuingMessage(anyString(), any(), anyInt(), anyInt());
+        TipoIdRendicontazione flow = flow();
+
+        flowsService.flowsXmlDownloading(List.of(flow), "idPA", 3, Deadline.none());
+
+        // the Nodo wasn't called: no retry is spent
+        verify(flowsService).reQueuingMessage("idPA", flow, 2, 120);
+        verify(flowsService, never()).reQueuingMessage(anyString(), any(), anyInt());
+    }
+
+    private FlowsService flowsService(FakeStorage storage) {
+        FlowsService flowsService = spy(new FlowsService(null, "broker", "station", "password",
+                "container", "queue", "flows", 1, 60, 0, logger));
+        BlobClient blobClient = new BlobClientBuilder()
+                .endpoint("https://devstoreaccount1.blob.core.windows.net/container/flow.xml")
+                .sasToken("sv=2020-08-04&sig=test")
+                .httpClient(storage)
+                .retryOptions(new RequestRetryOptions(RetryPolicyType.FIXED, 1, (Integer) null, null, null, null))
+                .buildClient();
+        doReturn(blobClient).when(flowsService).getBlobClient(anyString());
+        doReturn((long) BLOCK_SIZE).when(flowsService).getUploadBlockSize();
+        doReturn(CONCURRENCY).when(flowsService).getUploadConcurrency();
+        return flowsService;
+    }
+
+    private static TipoIdRendicontazione flow() throws Exception {
+        TipoIdRendicontazione flow = new TipoIdRendicontazione();
+        flow.setIdentificativoFlusso("2022-01-12PPAYITR1XXX-S239349322");
+        flow.setDataOraFlusso(DatatypeFactory.newInstance().newXMLGregorianCalendar("2022-01-12T00:31:05.000Z"));
+        return flow;
+    }
+
+    /**
+     * Blob service answering the uploads, counting what it receives.
+     */
+    private static class FakeStorage implements HttpClient {
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicInteger stagedBlocks = new AtomicInteger();
+        private final AtomicInteger commits = new AtomicInteger();
+        private final AtomicInteger singleUploads = new AtomicInteger();
+
+        @Override
+        public Mono<HttpResponse> send(HttpRequest request) {
+            String query = request.getUrl().getQuery();
+            Flux<ByteBuffer> body = request.getBody() != null ? request.getBody() : Flux.empty();
+            return body.reduce(0L, (size, buffer) -> size + buffer.remaining())
+                    .map(size -> {
+                        if (query != null && query.contains("comp=blocklist")) {
+                            commits.incrementAndGet();
+                        } else if (query != null && query.contains("comp=block")) {
+                            stagedBlocks.incrementAndGet();
+                            received.addAndGet(size);
+                        } else {
+                            singleUploads.incrementAndGet();
+                            received.addAndGet(size);
+                        }
+                        return (HttpResponse) new Created(request);
+                    });
+        }
+    }
+
+    private static class Created extends HttpResponse {
+        private final HttpHeaders headers = new HttpHeaders()
+                .set("ETag", "\"0x8D9\"")
+                .set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(OffsetDateTime.now()))
+                .set("x-ms-request-server-encrypted", "true");
+
+        private Created(HttpRequest request) {
+            super(request);
+        }
+
+        @Override
+        public int getStatusCode() {
+            return 201;
+        }
+
+        @Override
+        public String getHeaderValue(String name) {
+            return headers.getValue(name);
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public Flux<ByteBuffer> getBody() {
+            return Flux.empty();
+        }
+
+        @Override
+        public Mono<byte[]> getBodyAsByteArray() {
+            return Mono.empty();
+        }
+
+        @Override
+        public Mono<String> getBodyAsString() {
+            return Mono.empty();
+        }
+
+        @Override
+        public Mono<String> getBodyAsString(Charset charset) {
+            return Mono.empty();
+        }
+    }
+
+    /**
+     * Xml of the given size generated while read, tracking how far the reads get ahead of the uploads.
+     */
+    private static class SyntheticFlow extends InputStream {
+        private static final byte[] ROW = "<datiSingoliPagamenti>0123456789</datiSingoliPagamenti>\n".getBytes(StandardCharsets.UTF_8);
+
+        private final long size;
+        private final FakeStorage storage;
+        private long read;
+        private long maxUnsent;
+        private boolean closed;
+
+        private SyntheticFlow(long size, FakeStorage storage) {
+            this.size = size;
+            this.storage = storage;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (read >= size) {
+                return -1;
+            }
+            int n = (int) Math.min(len, size - read);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = ROW[(int) ((read + i) % ROW.length)];
+            }
+            read += n;
+            maxUnsent = Math.max(maxUnsent, read - storage.received.get());
+            return n;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static class StreamDataSource implements DataSource {
+        private final InputStream stream;
+
+        private StreamDataSource(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return stream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/xml";
+        }
+
+        @Override
+        public String getName() {
+            return "flow.xml";
+        }
+    }
+}
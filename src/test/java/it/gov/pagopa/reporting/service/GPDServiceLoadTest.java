@@ -0,0 +1,93 @@
+package it.gov.pagopa.reporting.service;
+
+import com.sun.net.httpserver.HttpServer;
+import it.gov.pagopa.reporting.models.PaymentOption;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives the pooled GPD client against a local stub and checks that connections are reused.
+ */
+class GPDServiceLoadTest {
+
+    private static final int THREADS = 8;
+    private static final int CALLS = 400;
+
+    private HttpServer server;
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    void startStub() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            // each client connection has its own remote port
+            connections.add(exchange.getRemoteAddress());
+            paths.add(exchange.getRequestURI().getPath());
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newFixedThreadPool(THREADS));
+        server.start();
+    }
+
+    @AfterEach
+    void stopStub() {
+        server.stop(0);
+    }
+
+    @Test
+    void reusesPooledConnections() throws Exception {
+        String host = "http://127.0.0.1:" + server.getAddress().getPort();
+        GPDService gpdService = new GPDService(host, THREADS, 1000, 1000);
+        Logger logger = Logger.getLogger("testlogging");
+
+        ExecutorService callers = Executors.newFixedThreadPool(THREADS);
+        AtomicInteger ok = new AtomicInteger();
+        long start = System.nanoTime();
+        Future<?>[] running = new Future<?>[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            running[t] = callers.submit(() -> {
+                for (int i = 0; i < CALLS / THREADS; i++) {
+                    PaymentOption option = new PaymentOption("0203026756500" + thread, i, null);
+                    if (gpdService.callSetReport("77777777777", option, "req-" + thread + "-" + i) == 200) {
+                        ok.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Future<?> future : running) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        callers.shutdown();
+        gpdService.close();
+
+        logger.info(() -> "[GPDServiceLoadTest] " + CALLS + " calls in " + elapsedMs + " ms over "
+                + connections.size() + " connections");
+
+        assertEquals(CALLS, ok.get());
+        assertEquals(CALLS, requests.get());
+        // a client per call would open CALLS connections
+        assertTrue(connections.size() <= THREADS, "connections: " + connections.size());
+        assertTrue(paths.contains("/organizations/77777777777/paymentoptions/02030267565000/transfers/0/report"));
+    }
+}
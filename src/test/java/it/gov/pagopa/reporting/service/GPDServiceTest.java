@@ -1,15 +1,30 @@
 package it.gov.pagopa.reporting.service;
 
+import com.sun.net.httpserver.HttpServer;
 import it.gov.pagopa.reporting.models.PaymentOption;
 import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.CircuitBreaker;
+import it.gov.pagopa.reporting.util.Deadline;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 class GPDServiceTest {
@@ -41,6 +56,22 @@ class GPDServiceTest {
         assertEquals(RetryStep.ERROR, result);
     }
 
+    @Test
+    void setReportTransient4xx() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(GPDService.getInstance());
+        PaymentOption option = new PaymentOption();
+        option.setOptionId("1");
+        option.setTransferId(1);
+
+        for (int status : new int[]{408, 409, 423, 429}) {
+            doReturn(status).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+            assertEquals(RetryStep.RETRY, gpdService.setReport("1", option, logger, "123"), "status " + status);
+        }
+    }
+
     @Test
     void setReportOk() {
         Logger logger = Logger.getLogger("testlogging");
@@ -55,4 +86,203 @@ class GPDServiceTest {
         var result = gpdService.setReport("1", option, logger, "123");
         assertEquals(RetryStep.DONE, result);
     }
+
+    @Test
+    void setIuvReportBulk() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000, true));
+        doReturn(new GPDService.IuvReportResponse(200, Map.of(1, 200, 2, 200, 3, 200)))
+                .when(gpdService).callSetIuvReport(anyString(), any(), anyString());
+
+        var result = gpdService.setIuvReport("1", List.of(option("1", 1), option("1", 2), option("1", 3)), logger, "123");
+
+        assertEquals(List.of(RetryStep.DONE, RetryStep.DONE, RetryStep.DONE), result);
+        verify(gpdService, never()).callSetReport(anyString(), any(), anyString());
+    }
+
+    @Test
+    void setIuvReportPerTransferOutcome() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000, true));
+        // the third transfer is missing from the response
+        doReturn(new GPDService.IuvReportResponse(200, Map.of(1, 200, 2, 404)))
+                .when(gpdService).callSetIuvReport(anyString(), any(), anyString());
+        doReturn(500).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        var result = gpdService.setIuvReport("1", List.of(option("1", 1), option("1", 2), option("1", 3)), logger, "123");
+
+        assertEquals(List.of(RetryStep.DONE, RetryStep.ERROR, RetryStep.RETRY), result);
+        verify(gpdService, times(1)).callSetReport(anyString(), any(), anyString());
+    }
+
+    @Test
+    void setIuvReportBulkErrorFallsBack() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000, true));
+        doReturn(new GPDService.IuvReportResponse(400, Map.of()))
+                .when(gpdService).callSetIuvReport(anyString(), any(), anyString());
+        doReturn(200, 500).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        var result = gpdService.setIuvReport("1", List.of(option("1", 1), option("1", 2)), logger, "123");
+
+        // a bulk 4xx doesn't mark the transfers as ERROR
+        assertEquals(List.of(RetryStep.DONE, RetryStep.RETRY), result);
+    }
+
+    @Test
+    void setIuvReportUnsupported() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000, true));
+        doReturn(new GPDService.IuvReportResponse(501, Map.of()))
+                .when(gpdService).callSetIuvReport(anyString(), any(), anyString());
+        doReturn(200, 404).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        var result = gpdService.setIuvReport("1", List.of(option("1", 1), option("1", 2)), logger, "123");
+        assertEquals(List.of(RetryStep.DONE, RetryStep.ERROR), result);
+
+        // the bulk endpoint is not tried again
+        gpdService.setIuvReport("1", List.of(option("2", 1), option("2", 2)), logger, "123");
+        verify(gpdService, times(1)).callSetIuvReport(anyString(), any(), anyString());
+        verify(gpdService, times(4)).callSetReport(anyString(), any(), anyString());
+    }
+
+    @Test
+    void setIuvReportNotFound() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000, true));
+        doReturn(new GPDService.IuvReportResponse(404, Map.of()))
+                .when(gpdService).callSetIuvReport(anyString(), any(), anyString());
+        doReturn(500).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        var result = gpdService.setIuvReport("1", List.of(option("1", 1), option("1", 2)), logger, "123");
+        assertEquals(List.of(RetryStep.RETRY, RetryStep.RETRY), result);
+
+        // repeated 404s disable the bulk endpoint
+        for (int i = 2; i <= 5; i++) {
+            gpdService.setIuvReport("1", List.of(option(String.valueOf(i), 1), option(String.valueOf(i), 2)), logger, "123");
+        }
+        verify(gpdService, times(3)).callSetIuvReport(anyString(), any(), anyString());
+    }
+
+    @Test
+    void setIuvReportBulkDisabledByDefault() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000));
+        doReturn(200).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        var result = gpdService.setIuvReport("1", List.of(option("1", 1), option("1", 2)), logger, "123");
+
+        assertEquals(List.of(RetryStep.DONE, RetryStep.DONE), result);
+        verify(gpdService, never()).callSetIuvReport(anyString(), any(), anyString());
+        verify(gpdService, times(2)).callSetReport(anyString(), any(), anyString());
+    }
+
+    @Test
+    void setIuvReportFallbackChecksTheDeadline() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000));
+        // room for the first call only, which takes 300 ms
+        Deadline deadline = Deadline.after(gpdService.getCallTimeoutMillis() + 200);
+        doAnswer(invocation -> {
+            Thread.sleep(300);
+            return 200;
+        }).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        var result = gpdService.setIuvReport("1", List.of(option("1", 1), option("1", 2), option("1", 3)), logger, "123", deadline);
+
+        assertEquals(List.of(RetryStep.DONE, RetryStep.DEFERRED, RetryStep.DEFERRED), result);
+        verify(gpdService, times(1)).callSetReport(anyString(), any(), anyString());
+    }
+
+    @Test
+    void parseTransferStatuses() {
+        assertEquals(Map.of(1, 200, 2, 409),
+                GPDService.parseTransferStatuses("[{\"transferId\":1,\"status\":200},{\"transferId\":2,\"status\":409},{\"status\":200}]"));
+        assertEquals(Map.of(), GPDService.parseTransferStatuses("{}"));
+        assertEquals(Map.of(), GPDService.parseTransferStatuses("<html>"));
+        assertEquals(Map.of(), GPDService.parseTransferStatuses(null));
+    }
+
+    @Test
+    void setIuvReportStub() throws Exception {
+        Logger logger = Logger.getLogger("testlogging");
+        List<String> requests = new CopyOnWriteArrayList<>();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.add(exchange.getRequestURI().getPath() + " "
+                    + new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            byte[] body = "[{\"transferId\":1,\"status\":200},{\"transferId\":2,\"status\":200}]".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        var gpdService = new GPDService("http://127.0.0.1:" + server.getAddress().getPort(), 1, 1000, 1000, true);
+        try {
+            var result = gpdService.setIuvReport("77777777777", List.of(option("01", 1), option("01", 2)), logger, "123");
+            assertEquals(List.of(RetryStep.DONE, RetryStep.DONE), result);
+        } finally {
+            gpdService.close();
+            server.stop(0);
+        }
+        assertEquals(List.of("/organizations/77777777777/paymentoptions/01/transfers/report {\"transferIds\":[1,2]}"), requests);
+    }
+
+    @Test
+    void setReportCircuitOpen() {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 1000, 1000));
+        doReturn(503).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        RetryStep result = null;
+        for (int i = 0; i < 25; i++) {
+            result = gpdService.setReport("1", option("1", i), logger, "123");
+        }
+
+        assertEquals(RetryStep.DEFERRED, result);
+        assertEquals(CircuitBreaker.State.OPEN, gpdService.getCircuitState());
+        // calls stop once the failure threshold is reached
+        verify(gpdService, times(20)).callSetReport(anyString(), any(), anyString());
+    }
+
+    @Test
+    void limiterTimeoutDoesntOpenCircuit() throws Exception {
+        Logger logger = Logger.getLogger("testlogging");
+
+        var gpdService = Mockito.spy(new GPDService("http://localhost", 1, 50, 50));
+        CountDownLatch calling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            calling.countDown();
+            release.await();
+            return 200;
+        }).when(gpdService).callSetReport(anyString(), any(), anyString());
+
+        // holds the only slot under the concurrency limit
+        CompletableFuture<RetryStep> holder = CompletableFuture.supplyAsync(() -> gpdService.setReport("1", option("1", 0), logger, "123"));
+        calling.await();
+        try {
+            for (int i = 1; i <= 21; i++) {
+                assertEquals(RetryStep.RETRY, gpdService.setReport("1", option("1", i), logger, "123"));
+            }
+            assertEquals(CircuitBreaker.State.CLOSED, gpdService.getCircuitState());
+        } finally {
+            release.countDown();
+        }
+        assertEquals(RetryStep.DONE, holder.get());
+    }
+
+    private static PaymentOption option(String iuv, int transferId) {
+        return new PaymentOption(iuv, transferId, null);
+    }
 }
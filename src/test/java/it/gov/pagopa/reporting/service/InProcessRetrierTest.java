@@ -0,0 +1,165 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.Deadline;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InProcessRetrierTest {
+
+    @Test
+    void recoversTransientFailures() {
+        PaymentOption transient1 = option("1", RetryStep.RETRY);
+        PaymentOption permanent = option("2", RetryStep.RETRY);
+        PaymentOption error = option("3", RetryStep.ERROR);
+        PaymentOption deferred = option("4", RetryStep.DEFERRED);
+        Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+        List<PaymentOption> failed = new InProcessRetrier(3, 10, 4).retry(List.of(transient1, permanent, error, deferred), option -> {
+            int call = calls.computeIfAbsent(option.getOptionId(), id -> new AtomicInteger()).incrementAndGet();
+            return "1".equals(option.getOptionId()) && call == 2 ? RetryStep.DONE : RetryStep.RETRY;
+        }, Deadline.none());
+
+        assertEquals(List.of(permanent, error, deferred), failed);
+        assertEquals(RetryStep.DONE.name(), transient1.getRetryAction());
+        assertEquals(2, calls.get("1").get());
+        // bounded attempts
+        assertEquals(3, calls.get("2").get());
+        // only RETRY options are retried
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    void disabled() {
+        List<PaymentOption> failed = List.of(option("1", RetryStep.RETRY));
+        assertSame(failed, new InProcessRetrier(0, 10, 1).retry(failed, option -> RetryStep.DONE, Deadline.none()));
+    }
+
+    @Test
+    void exceptionIsARetry() {
+        PaymentOption option = option("1", RetryStep.RETRY);
+        List<PaymentOption> failed = new InProcessRetrier(2, 1, 1).retry(List.of(option), o -> {
+            throw new IllegalStateException("gpd");
+        }, Deadline.none());
+        assertEquals(List.of(option), failed);
+        assertEquals(RetryStep.RETRY.name(), option.getRetryAction());
+    }
+
+    @Test
+    void boundedByConcurrency() {
+        List<PaymentOption> options = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            options.add(option(String.valueOf(i), RetryStep.RETRY));
+        }
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+
+        List<PaymentOption> failed = new InProcessRetrier(1, 1, 2).retry(options, option -> {
+            peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+            sleep(20);
+            running.decrementAndGet();
+            return RetryStep.DONE;
+        }, Deadline.none());
+
+        assertTrue(failed.isEmpty());
+        assertTrue(peak.get() <= 2, "peak " + peak.get());
+    }
+
+    @Test
+    void deadlineLeavesRetry() {
+        PaymentOption slow = option("1", RetryStep.RETRY);
+        PaymentOption fast = option("2", RetryStep.RETRY);
+        CountDownLatch release = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        List<PaymentOption> failed = new InProcessRetrier(2, 1, 2).retry(List.of(slow, fast), option -> {
+            if ("1".equals(option.getOptionId())) {
+                await(release);
+            }
+            return RetryStep.DONE;
+        }, Deadline.after(200));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        release.countDown();
+
+        assertTrue(elapsed < 2000, "waited " + elapsed);
+        assertEquals(List.of(slow), failed);
+        assertEquals(RetryStep.DONE.name(), fast.getRetryAction());
+        // a late outcome doesn't change the option left to retry
+        sleep(50);
+        assertEquals(RetryStep.RETRY.name(), slow.getRetryAction());
+    }
+
+    @Test
+    void noRetryPastTheDeadline() {
+        PaymentOption option = option("1", RetryStep.RETRY);
+        AtomicInteger calls = new AtomicInteger();
+
+        List<PaymentOption> failed = new InProcessRetrier(3, 1000, 1).retry(List.of(option), o -> {
+            calls.incrementAndGet();
+            return RetryStep.DONE;
+        }, Deadline.after(100));
+
+        assertEquals(List.of(option), failed);
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    void retryByIuv() {
+        PaymentOption first = option("1", RetryStep.RETRY);
+        PaymentOption second = new PaymentOption("1", 2, RetryStep.RETRY.name());
+        PaymentOption reported = new PaymentOption("1", 3, RetryStep.DONE.name());
+        PaymentOption other = option("2", RetryStep.RETRY);
+        List<List<PaymentOption>> calls = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean retried = new AtomicBoolean();
+
+        List<PaymentOption> failed = new InProcessRetrier(2, 1, 1).retryByIuv(List.of(first, second, reported, other), transfers -> {
+            calls.add(List.copyOf(transfers));
+            List<RetryStep> steps = new ArrayList<>();
+            for (PaymentOption transfer : transfers) {
+                steps.add(transfer == second && !retried.getAndSet(true) ? RetryStep.RETRY : RetryStep.DONE);
+            }
+            return steps;
+        }, Deadline.none());
+
+        assertTrue(failed.isEmpty());
+        // one call for the transfers to retry of an IUV, then only the ones still to retry
+        assertTrue(calls.contains(List.of(first, second)));
+        assertTrue(calls.contains(List.of(other)));
+        assertTrue(calls.contains(List.of(second)));
+        assertEquals(3, calls.size());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static PaymentOption option(String iuv, RetryStep step) {
+        return new PaymentOption(iuv, 1, step.name());
+    }
+}
@@ -0,0 +1,140 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.exception.NodePortUnavailableException;
+import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPT;
+import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPTservice;
+import it.gov.pagopa.reporting.util.Deadline;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class NodePortPoolTest {
+
+    Logger logger = Logger.getLogger("testlogging");
+
+    @Test
+    void reusesReleasedPortTest() {
+        NodePortPool pool = new NodePortPool(2, () -> mock(PagamentiTelematiciRPT.class));
+
+        PagamentiTelematiciRPT port = pool.borrow("broker", "station");
+        pool.release("broker", "station", port);
+
+        assertSame(port, pool.borrow("broker", "station"));
+        assertEquals(1, pool.getCreated());
+    }
+
+    @Test
+    void keyedByStationTest() {
+        NodePortPool pool = new NodePortPool(2, () -> mock(PagamentiTelematiciRPT.class));
+
+        PagamentiTelematiciRPT port = pool.borrow("broker", "station1");
+        pool.release("broker", "station1", port);
+
+        assertNotSame(port, pool.borrow("broker", "station2"));
+        assertEquals(2, pool.getCreated());
+    }
+
+    @Test
+    void concurrentBorrowsGetDistinctPortsTest() {
+        NodePortPool pool = new NodePortPool(2, () -> mock(PagamentiTelematiciRPT.class));
+
+        PagamentiTelematiciRPT first = pool.borrow("broker", "station");
+        PagamentiTelematiciRPT second = pool.borrow("broker", "station");
+
+        assertNotSame(first, second);
+    }
+
+    @Test
+    void boundedIdlePortsTest() {
+        NodePortPool pool = new NodePortPool(1, () -> mock(PagamentiTelematiciRPT.class));
+
+        PagamentiTelematiciRPT first = pool.borrow("broker", "station");
+        PagamentiTelematiciRPT second = pool.borrow("broker", "station");
+        pool.release("broker", "station", first);
+        pool.release("broker", "station", second);
+
+        assertSame(first, pool.borrow("broker", "station"));
+        // the second one was dropped
+        pool.borrow("broker", "station");
+        assertEquals(3, pool.getCreated());
+    }
+
+    @Test
+    void boundedPortsInUseTest() {
+        NodePortPool pool = new NodePortPool(1, 2, () -> mock(PagamentiTelematiciRPT.class));
+
+        PagamentiTelematiciRPT first = pool.borrow("broker", "station");
+        pool.borrow("broker", "station");
+
+        // the station has no port left until one is released
+        assertThrows(NodePortUnavailableException.class, () -> pool.borrow("broker", "station", Deadline.after(50)));
+        // the bound is per station
+        assertNotNull(pool.borrow("broker", "other", Deadline.after(50)));
+
+        pool.release("broker", "station", first);
+        assertSame(first, pool.borrow("broker", "station", Deadline.after(50)));
+        assertEquals(3, pool.getCreated());
+    }
+
+    @Test
+    void waitsForReleasedPortTest() throws Exception {
+        NodePortPool pool = new NodePortPool(1, 1, () -> mock(PagamentiTelematiciRPT.class));
+        PagamentiTelematiciRPT port = pool.borrow("broker", "station");
+
+        CompletableFuture<PagamentiTelematiciRPT> waiting =
+                CompletableFuture.supplyAsync(() -> pool.borrow("broker", "station", Deadline.after(5000)));
+        Thread.sleep(50);
+        assertFalse(waiting.isDone());
+        pool.release("broker", "station", port);
+
+        assertSame(port, waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(1, pool.getCreated());
+    }
+
+    @Test
+    void droppedPortFreesItsSlotTest() {
+        NodePortPool pool = new NodePortPool(0, 1, () -> mock(PagamentiTelematiciRPT.class));
+
+        pool.release("broker", "station", pool.borrow("broker", "station"));
+
+        // not kept idle, but the station can get a new one
+        assertNotNull(pool.borrow("broker", "station", Deadline.after(50)));
+        assertEquals(2, pool.getCreated());
+    }
+
+    /**
+     * Setup cost of the Nodo client per message: a new service and port, as before the pool, against a pooled port.
+     */
+    @Test
+    void setupCostTest() {
+        int messages = 20;
+        // warm up the JAX-WS runtime, paid once by both
+        new PagamentiTelematiciRPTservice(PagamentiTelematiciRPTservice.WSDL_LOCATION).getPagamentiTelematiciRPTPort();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            assertNotNull(new PagamentiTelematiciRPTservice(PagamentiTelematiciRPTservice.WSDL_LOCATION).getPagamentiTelematiciRPTPort());
+        }
+        long perMessageBefore = (System.nanoTime() - start) / messages;
+
+        NodePortPool pool = NodePortPool.shared();
+        pool.release("broker", "station", pool.borrow("broker", "station"));
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            PagamentiTelematiciRPT port = pool.borrow("broker", "station");
+            assertNotNull(port);
+            pool.release("broker", "station", port);
+        }
+        long perMessageAfter = (System.nanoTime() - start) / messages;
+
+        logger.info(() -> "[NodePortPoolTest] Nodo client setup per message: new service "
+                + TimeUnit.NANOSECONDS.toMicros(perMessageBefore) + " us, pooled port "
+                + TimeUnit.NANOSECONDS.toMicros(perMessageAfter) + " us");
+        assertTrue(perMessageAfter < perMessageBefore);
+    }
+}
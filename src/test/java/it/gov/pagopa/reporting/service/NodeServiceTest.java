@@ -1,5 +1,6 @@
 package it.gov.pagopa.reporting.service;
 
+import it.gov.pagopa.reporting.models.NodoChiediFlussoRendicontazioneResult;
 import it.gov.pagopa.reporting.servicewsdl.PagamentiTelematiciRPT;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -7,10 +8,14 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import javax.xml.ws.WebServiceException;
-import java.lang.reflect.Field;
 import java.util.logging.Logger;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
 
 @ExtendWith(MockitoExtension.class)
 class NodeServiceTest {
@@ -35,17 +40,42 @@ class NodeServiceTest {
     }
 
     @Test
-    void nodoChiediElencoFlussiTestSettersTest() throws NoSuchFieldException, IllegalAccessException {
+    void nodoChiediElencoFlussiResultTest() {
 
-        NodeService nodeService = new NodeService(null, null, null);
+        NodePortPool pool = new NodePortPool(1, () -> myPort);
+        NodeService nodeService = new NodeService("broker", "station", null, pool);
+
+        NodoChiediFlussoRendicontazioneResult result = nodeService.callNodoChiediFlussoRendicontazione("idPA", "idFlow");
+
+        assertNull(result.getFault());
+        assertNull(result.getXmlReporting());
+        verify(myPort).nodoChiediFlussoRendicontazione(eq("broker"), eq("station"), isNull(), eq("idPA"), isNull(), eq("idFlow"), any(), any());
+    }
+
+    @Test
+    void nodoChiediElencoFlussiReusesPortTest() {
+
+        NodePortPool pool = new NodePortPool(1, () -> myPort);
+        NodeService nodeService = new NodeService("broker", "station", null, pool);
+
+        nodeService.callNodoChiediFlussoRendicontazione("idPA", "idFlow1");
+        nodeService.callNodoChiediFlussoRendicontazione("idPA", "idFlow2");
+
+        assertEquals(1, pool.getCreated());
+    }
+
+    @Test
+    void nodoChiediElencoFlussiReleasesPortOnErrorTest() {
 
-        Field keyField = nodeService.getClass().getDeclaredField("port");
-        keyField.setAccessible(true);
-        keyField.set(nodeService, myPort);
+        NodePortPool pool = new NodePortPool(1, () -> myPort);
+        NodeService nodeService = new NodeService("broker", "station", null, pool);
+        doThrow(new WebServiceException("down")).when(myPort)
+                .nodoChiediFlussoRendicontazione(any(), any(), any(), any(), any(), any(), any(), any());
 
-        nodeService.callNodoChiediFlussoRendicontazione("idPA", "idFlow");
+        assertThrows(WebServiceException.class, () -> nodeService.callNodoChiediFlussoRendicontazione("idPA", "idFlow"));
 
-        assertTrue(Boolean.TRUE);
+        assertSame(myPort, pool.borrow("broker", "station"));
+        assertEquals(1, pool.getCreated());
     }
 
 }
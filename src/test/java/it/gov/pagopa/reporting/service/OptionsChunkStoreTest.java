@@ -0,0 +1,64 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.PaymentOptionBuffer;
+import it.gov.pagopa.reporting.models.RetryStep;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobStorageException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OptionsChunkStoreTest {
+
+    @Test
+    void encodeAndDecodeRanges() throws Exception {
+        PaymentOptionBuffer options = new PaymentOptionBuffer();
+        for (int i = 0; i < 2500; i++) {
+            options.add("0203026756500" + i, i % 4 + 1, RetryStep.NONE);
+        }
+
+        OptionsChunkStore.Chunk chunk = OptionsChunkStore.encode(options, 1000);
+
+        assertEquals(3, chunk.getRanges().size());
+        int index = 0;
+        for (OptionsChunkStore.Range range : chunk.getRanges()) {
+            List<PaymentOption> decoded = OptionsChunkStore.decode(
+                    new ByteArrayInputStream(chunk.getData(), (int) range.getOffset(), (int) range.getLength()));
+            for (PaymentOption option : decoded) {
+                assertEquals(options.get(index).getOptionId(), option.getOptionId());
+                assertEquals(options.get(index).getTransferId(), option.getTransferId());
+                assertEquals(RetryStep.NONE.name(), option.getRetryAction());
+                index++;
+            }
+        }
+        assertEquals(2500, index);
+        assertEquals(500, OptionsChunkStore.decode(new ByteArrayInputStream(chunk.getData(),
+                (int) chunk.getRanges().get(2).getOffset(), (int) chunk.getRanges().get(2).getLength())).size());
+    }
+
+    @Test
+    void storageErrorsAreIOExceptions() {
+        BlobClient blob = mock(BlobClient.class);
+        when(blob.openInputStream(any(BlobRange.class), any())).thenThrow(new BlobStorageException("blob not found", null, null));
+        OptionsChunkStore store = new OptionsChunkStore(null, "optionschunks") {
+            @Override
+            protected BlobClient getBlobClient(String blobName) {
+                return blob;
+            }
+        };
+
+        IOException e = assertThrows(IOException.class, () -> store.read("chunk.csv", 0, 40));
+        assertTrue(e.getCause() instanceof BlobStorageException);
+    }
+}
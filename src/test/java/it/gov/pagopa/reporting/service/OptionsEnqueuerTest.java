@@ -0,0 +1,119 @@
+package it.gov.pagopa.reporting.service;
+
+import com.microsoft.azure.storage.StorageException;
+import it.gov.pagopa.reporting.util.Deadline;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OptionsEnqueuerTest {
+
+    @Test
+    void sendWithBoundedConcurrency() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger calls = new AtomicInteger();
+        OptionsEnqueuer.Sender sender = message -> {
+            calls.incrementAndGet();
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+        };
+
+        OptionsEnqueuer enqueuer = new OptionsEnqueuer(sender, 4);
+        for (int i = 0; i < 20; i++) {
+            enqueuer.submit(i, "message" + i);
+        }
+        OptionsEnqueuer.EnqueueReport report = enqueuer.awaitCompletion();
+
+        assertEquals(20, report.getSent());
+        assertTrue(report.getFailed().isEmpty());
+        assertTrue(maxRunning.get() <= 4);
+        assertTrue(maxRunning.get() > 1);
+        assertEquals(20, calls.get());
+    }
+
+    @Test
+    void collectFailedBatches() {
+        OptionsEnqueuer.Sender sender = message -> {
+            if (message.endsWith("3")) {
+                throw new StorageException("500", "server error", null);
+            }
+        };
+
+        OptionsEnqueuer enqueuer = new OptionsEnqueuer(sender, 2);
+        for (int i = 0; i < 5; i++) {
+            enqueuer.submit(i, "message" + i);
+        }
+        OptionsEnqueuer.EnqueueReport report = enqueuer.awaitCompletion();
+
+        assertEquals(4, report.getSent());
+        assertEquals(1, report.getFailed().size());
+        assertEquals(3, report.getFailed().get(0).getBatch());
+        assertEquals("message3", report.getFailed().get(0).getMessage());
+        assertEquals("server error", report.getFailed().get(0).getError());
+    }
+
+    @Test
+    void waitsUntilTheDeadline() {
+        CountDownLatch release = new CountDownLatch(1);
+        OptionsEnqueuer.Sender sender = message -> {
+            if (message.endsWith("0")) {
+                release.await();
+            }
+        };
+
+        long start = System.nanoTime();
+        OptionsEnqueuer enqueuer = new OptionsEnqueuer(sender, 1, Deadline.after(200));
+        for (int i = 0; i < 3; i++) {
+            enqueuer.submit(i, "message" + i);
+        }
+        OptionsEnqueuer.EnqueueReport report = enqueuer.awaitCompletion();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        release.countDown();
+
+        assertTrue(elapsed < 2000, "waited " + elapsed);
+        assertEquals(0, report.getSent());
+        assertEquals(3, report.getFailed().size());
+        // the batches waiting for a slot, then the one still being sent, each with its message
+        assertEquals(List.of(1, 2, 0), report.getFailed().stream().map(OptionsEnqueuer.FailedBatch::getBatch).collect(Collectors.toList()));
+        assertEquals(List.of("message1", "message2", "message0"),
+                report.getFailed().stream().map(OptionsEnqueuer.FailedBatch::getMessage).collect(Collectors.toList()));
+        assertEquals("not sent before the deadline", report.getFailed().get(0).getError());
+        assertEquals("still being sent at the deadline", report.getFailed().get(2).getError());
+    }
+
+    @Test
+    void unfinishedSendsAreReportedOnce() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        OptionsEnqueuer.Sender sender = message -> {
+            started.countDown();
+            release.await();
+        };
+
+        OptionsEnqueuer enqueuer = new OptionsEnqueuer(sender, 2, Deadline.after(300));
+        enqueuer.submit(0, "message0");
+        enqueuer.submit(1, "message1");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        OptionsEnqueuer.EnqueueReport report = enqueuer.awaitCompletion();
+        release.countDown();
+
+        assertEquals(0, report.getSent());
+        assertEquals(List.of(0, 1), report.getFailed().stream().map(OptionsEnqueuer.FailedBatch::getBatch).collect(Collectors.toList()));
+        assertTrue(report.getFailed().stream().allMatch(failed -> "still being sent at the deadline".equals(failed.getError())));
+    }
+
+    @Test
+    void queueSendsAreBoundedByTheDeadline() {
+        assertTrue(OptionsEnqueuer.requestOptions(Deadline.after(1000)).getMaximumExecutionTimeInMs() <= 1000);
+        assertEquals(Integer.MAX_VALUE, OptionsEnqueuer.requestOptions(Deadline.none()).getMaximumExecutionTimeInMs());
+    }
+}
@@ -0,0 +1,103 @@
+package it.gov.pagopa.reporting.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.gov.pagopa.reporting.models.OptionsMessage;
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.PaymentOptionBuffer;
+import it.gov.pagopa.reporting.models.RetryStep;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OptionsMessagePackerTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void packWithinByteBudget() throws Exception {
+        OptionsMessagePacker packer = new OptionsMessagePacker(2048, 1000);
+        OptionsMessage template = template();
+        PaymentOptionBuffer options = options(1000);
+
+        List<List<PaymentOption>> batches = packer.pack(template, options);
+
+        int total = 0;
+        for (List<PaymentOption> batch : batches) {
+            template.setPaymentOptions(batch);
+            int bytes = mapper.writeValueAsBytes(template).length;
+            assertTrue(bytes <= 2048, "message of " + bytes + " bytes");
+            assertEquals(options.get(total).getOptionId(), batch.get(0).getOptionId());
+            total += batch.size();
+        }
+        assertEquals(1000, total);
+        assertTrue(batches.size() > 1);
+    }
+
+    @Test
+    void packFillsBudget() throws Exception {
+        OptionsMessagePacker packer = new OptionsMessagePacker(2048, 1000);
+        OptionsMessage template = template();
+
+        List<List<PaymentOption>> batches = packer.pack(template, options(1000));
+
+        // adding the first option of the next batch would exceed the budget
+        template.setPaymentOptions(batches.get(1).subList(0, 1));
+        int optionBytes = mapper.writeValueAsBytes(template).length - mapper.writeValueAsBytes(emptyTemplate()).length;
+        template.setPaymentOptions(batches.get(0));
+        assertTrue(mapper.writeValueAsBytes(template).length + optionBytes + 1 > 2048);
+    }
+
+    @Test
+    void packWithMaxOptions() throws Exception {
+        OptionsMessagePacker packer = new OptionsMessagePacker(OptionsMessagePacker.MAX_MESSAGE_BYTES, 30);
+
+        List<List<PaymentOption>> batches = packer.pack(template(), options(100));
+
+        assertEquals(4, batches.size());
+        assertEquals(30, batches.get(0).size());
+        assertEquals(10, batches.get(3).size());
+    }
+
+    @Test
+    void budgetCappedToQueueLimit() throws Exception {
+        OptionsMessagePacker packer = new OptionsMessagePacker(1024 * 1024, 100000);
+        OptionsMessage template = template();
+
+        List<List<PaymentOption>> batches = packer.pack(template, options(5000));
+
+        assertEquals(OptionsMessagePacker.MAX_MESSAGE_BYTES, packer.getMaxBytes());
+        for (List<PaymentOption> batch : batches) {
+            template.setPaymentOptions(batch);
+            // base64 encoded size must fit the 64 KB queue limit
+            assertTrue((mapper.writeValueAsBytes(template).length + 2) / 3 * 4 <= 64 * 1024);
+        }
+    }
+
+    @Test
+    void packEmpty() throws Exception {
+        OptionsMessagePacker packer = new OptionsMessagePacker(2048, 10);
+
+        assertTrue(packer.pack(template(), Collections.emptyList()).isEmpty());
+    }
+
+    private OptionsMessage template() {
+        OptionsMessage template = emptyTemplate();
+        template.setPaymentOptions(Collections.emptyList());
+        return template;
+    }
+
+    private OptionsMessage emptyTemplate() {
+        return new OptionsMessage("77777777777", "2021-07-27SELBIT2B-S003014897", "2021-07-27T12:00:07", Collections.emptyList(), 0);
+    }
+
+    private PaymentOptionBuffer options(int size) {
+        PaymentOptionBuffer options = new PaymentOptionBuffer();
+        for (int i = 0; i < size; i++) {
+            options.add(String.format("0203026756500%04d", i), i % 3 + 1, RetryStep.NONE);
+        }
+        return options;
+    }
+}
@@ -0,0 +1,113 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.exception.AppException;
+import it.gov.pagopa.reporting.models.cache.Station;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PaStationResolverTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final PaStationResolver.Lookup lookup = idPa -> {
+        lookups.incrementAndGet();
+        return idPa.startsWith("KNOWN")
+                ? Optional.of(Station.builder().stationCode("S_" + idPa).enabled(true).build())
+                : Optional.empty();
+    };
+
+    @Test
+    void cachesKnownAndUnknownPas() throws AppException {
+        PaStationResolver resolver = new PaStationResolver(10, 3600, 60, now::get);
+
+        assertEquals("S_KNOWN1", resolver.resolve("KNOWN1", lookup).map(Station::getStationCode).orElse(null));
+        assertEquals("S_KNOWN1", resolver.resolve("KNOWN1", lookup).map(Station::getStationCode).orElse(null));
+        assertFalse(resolver.resolve("UNKNOWN", lookup).isPresent());
+        assertFalse(resolver.resolve("UNKNOWN", lookup).isPresent());
+
+        assertEquals(2, lookups.get());
+        assertEquals(1, resolver.getHits());
+        assertEquals(2, resolver.getMisses());
+        assertEquals(1, resolver.getNegativeHits());
+    }
+
+    @Test
+    void unknownPasExpireFirst() throws AppException {
+        PaStationResolver resolver = new PaStationResolver(10, 3600, 60, now::get);
+        resolver.resolve("KNOWN1", lookup);
+        resolver.resolve("UNKNOWN", lookup);
+
+        now.set(TimeUnit.SECONDS.toNanos(61));
+        resolver.resolve("KNOWN1", lookup);
+        resolver.resolve("UNKNOWN", lookup);
+        assertEquals(3, lookups.get());
+
+        now.set(TimeUnit.SECONDS.toNanos(3601));
+        resolver.resolve("KNOWN1", lookup);
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    void boundedAndLookupErrorsNotCached() throws AppException {
+        PaStationResolver resolver = new PaStationResolver(2, 3600, 60, now::get);
+        resolver.resolve("KNOWN1", lookup);
+        resolver.resolve("KNOWN2", lookup);
+        resolver.resolve("KNOWN3", lookup);
+        // the least recently used one was evicted
+        resolver.resolve("KNOWN1", lookup);
+        assertEquals(4, lookups.get());
+
+        assertThrows(AppException.class, () -> resolver.resolve("KNOWN4", idPa -> {
+            throw new AppException("api config down");
+        }));
+        assertTrue(resolver.resolve("KNOWN4", lookup).isPresent());
+    }
+
+    @Test
+    void concurrentMissesShareALookup() throws Exception {
+        PaStationResolver resolver = new PaStationResolver(10, 3600, 60, now::get);
+        CountDownLatch release = new CountDownLatch(1);
+        PaStationResolver.Lookup slowLookup = idPa -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return lookup.lookup(idPa);
+        };
+
+        List<CompletableFuture<Optional<Station>>> resolved = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            resolved.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return resolver.resolve("KNOWN_PA", slowLookup);
+                } catch (AppException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        long timeout = System.currentTimeMillis() + 5_000;
+        while (resolver.getMisses() < 4 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+
+        for (CompletableFuture<Optional<Station>> station : resolved) {
+            assertEquals("S_KNOWN_PA", station.get(5, TimeUnit.SECONDS).map(Station::getStationCode).orElse(null));
+        }
+        assertEquals(1, lookups.get());
+    }
+}
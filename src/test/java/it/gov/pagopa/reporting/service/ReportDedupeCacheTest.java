@@ -0,0 +1,187 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.entities.ReportedOptionEntity;
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReportDedupeCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void skipsKnownOutcomes() {
+        ReportDedupeCache cache = new ReportDedupeCache(100, 60, null, null, true, now::get);
+
+        assertEquals(RetryStep.DONE, cache.report("pa", option("1", 1), this::done));
+        assertEquals(RetryStep.DONE, cache.report("pa", option("1", 1), this::done));
+        assertEquals(RetryStep.ERROR, cache.report("pa", option("1", 2), o -> error()));
+        assertEquals(RetryStep.ERROR, cache.report("pa", option("1", 2), this::done));
+        // other PA
+        assertEquals(RetryStep.DONE, cache.report("other", option("1", 1), this::done));
+
+        assertEquals(3, calls.get());
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void retriesAreNotCached() {
+        ReportDedupeCache cache = new ReportDedupeCache(100, 60, null, null, false, now::get);
+
+        cache.report("pa", option("1", 1), o -> RetryStep.RETRY);
+        cache.report("pa", option("1", 1), o -> RetryStep.DEFERRED);
+        assertEquals(RetryStep.DONE, cache.report("pa", option("1", 1), this::done));
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    void outcomesExpireAfterTheWindow() {
+        ReportDedupeCache cache = new ReportDedupeCache(100, 60, null, null, false, now::get);
+
+        cache.report("pa", option("1", 1), this::done);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        cache.report("pa", option("1", 1), this::done);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        cache.report("pa", option("1", 1), this::done);
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void boundedEntries() {
+        ReportDedupeCache cache = new ReportDedupeCache(2, 60, null, null, false, now::get);
+
+        cache.report("pa", option("1", 1), this::done);
+        cache.report("pa", option("2", 1), this::done);
+        cache.report("pa", option("3", 1), this::done);
+        // the least recently used is evicted
+        cache.report("pa", option("1", 1), this::done);
+
+        assertEquals(4, calls.get());
+    }
+
+    @Test
+    void reportsOnlyUnknownTransfersOfAnIuv() {
+        ReportDedupeCache cache = new ReportDedupeCache(100, 60, null, null, false, now::get);
+        cache.report("pa", option("1", 2), this::done);
+
+        List<RetryStep> steps = cache.reportIuv("pa", List.of(option("1", 1), option("1", 2), option("1", 3)), transfers -> {
+            assertEquals(2, transfers.size());
+            assertEquals(1, transfers.get(0).getTransferId());
+            assertEquals(3, transfers.get(1).getTransferId());
+            return Collections.nCopies(transfers.size(), RetryStep.RETRY);
+        });
+
+        assertEquals(List.of(RetryStep.RETRY, RetryStep.DONE, RetryStep.RETRY), steps);
+    }
+
+    @Test
+    void bloomFilterRotates() {
+        ReportDedupeCache cache = new ReportDedupeCache(100, 60, null, null, true, now::get);
+        cache.report("pa", option("1", 1), this::done);
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        cache.report("pa", option("2", 1), this::done);
+        // the previous generation is still checked
+        assertTrue(cache.mightContain("pa|1|1"));
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        cache.report("pa", option("3", 1), this::done);
+        assertFalse(cache.mightContain("pa|1|1"));
+        assertTrue(cache.mightContain("pa|2|1"));
+        assertTrue(cache.mightContain("pa|3|1"));
+    }
+
+    @Test
+    void bloomFilterRotatesWhenFull() {
+        // 10 keys per generation
+        ReportDedupeCache cache = new ReportDedupeCache(1, 60, null, null, true, now::get);
+        for (int i = 0; i < 21; i++) {
+            cache.report("pa", option(String.valueOf(i), 1), this::done);
+        }
+        assertFalse(cache.mightContain("pa|0|1"));
+        assertTrue(cache.mightContain("pa|10|1"));
+        assertTrue(cache.mightContain("pa|20|1"));
+    }
+
+    @Test
+    void tableRequiresTheBloomGate() {
+        ReportDedupeCache cache = new ReportDedupeCache(100, 60, null, "dedupe", false, now::get) {
+            @Override
+            void write(String idPA, List<ReportedOptionEntity> entities) {
+                // not stored
+            }
+        };
+
+        // a key never recorded is not looked up in the table
+        assertFalse(cache.mightContain("pa|1|1"));
+        cache.report("pa", option("1", 1), this::done);
+        assertTrue(cache.mightContain("pa|1|1"));
+    }
+
+    @Test
+    void tableWritesAreBatchedOffTheReportPath() throws InterruptedException {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<ReportedOptionEntity>> batches = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch written = new CountDownLatch(5);
+        ReportDedupeCache cache = new ReportDedupeCache(100, 60, null, "dedupe", true, now::get) {
+            @Override
+            void write(String idPA, List<ReportedOptionEntity> entities) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                batches.add(List.copyOf(entities));
+                entities.forEach(entity -> written.countDown());
+            }
+        };
+
+        cache.report("pa", option("1", 1), this::done);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        cache.report("pa", option("1", 2), this::done);
+        cache.report("other", option("1", 1), this::done);
+        cache.report("pa", option("2", 1), o -> error());
+        cache.report("other", option("2", 1), this::done);
+        // the report calls didn't wait for the table
+        assertEquals(5, calls.get());
+        release.countDown();
+
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        for (List<ReportedOptionEntity> batch : batches) {
+            assertEquals(1, batch.stream().map(ReportedOptionEntity::getPartitionKey).distinct().count());
+        }
+        // the outcomes recorded while the first write was pending are stored together, one batch per PA
+        assertEquals(3, batches.size());
+    }
+
+    private RetryStep done(PaymentOption option) {
+        calls.incrementAndGet();
+        return RetryStep.DONE;
+    }
+
+    private RetryStep error() {
+        calls.incrementAndGet();
+        return RetryStep.ERROR;
+    }
+
+    private static PaymentOption option(String iuv, int transferId) {
+        return new PaymentOption(iuv, transferId, null);
+    }
+}
@@ -0,0 +1,142 @@
+package it.gov.pagopa.reporting.service;
+
+import it.gov.pagopa.reporting.models.PaymentOption;
+import it.gov.pagopa.reporting.models.RetryStep;
+import it.gov.pagopa.reporting.util.Deadline;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReportDispatcherTest {
+
+    @Test
+    void classifiesEveryOption() {
+        List<PaymentOption> options = options(50);
+
+        List<PaymentOption> failed = new ReportDispatcher(8).dispatch(options,
+                option -> option.getTransferId() % 10 == 0 ? RetryStep.RETRY
+                        : option.getTransferId() % 10 == 1 ? RetryStep.ERROR : RetryStep.DONE);
+
+        assertEquals(10, failed.size());
+        for (int i = 0; i < failed.size(); i++) {
+            // original order is kept
+            assertEquals(i / 2 * 10 + i % 2, failed.get(i).getTransferId());
+        }
+        options.forEach(option -> assertTrue(option.getRetryAction() != null));
+        assertEquals(RetryStep.ERROR.name(), options.get(1).getRetryAction());
+        assertEquals(RetryStep.DONE.name(), options.get(2).getRetryAction());
+    }
+
+    @Test
+    void boundsConcurrentCalls() {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        new ReportDispatcher(4).dispatch(options(40), option -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return RetryStep.DONE;
+        });
+
+        assertTrue(maxRunning.get() <= 4);
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    @Test
+    void sequentialRunsOnCallerThread() {
+        Thread caller = Thread.currentThread();
+        List<PaymentOption> failed = new ReportDispatcher(1).dispatch(options(3), option -> {
+            assertEquals(caller, Thread.currentThread());
+            return RetryStep.RETRY;
+        });
+        assertEquals(3, failed.size());
+    }
+
+    @Test
+    void rethrowsFirstError() {
+        ReportDispatcher dispatcher = new ReportDispatcher(4);
+        List<PaymentOption> options = options(20);
+        assertThrows(IllegalArgumentException.class, () -> dispatcher.dispatch(options, option -> {
+            throw new IllegalArgumentException("gpd");
+        }));
+    }
+
+    @Test
+    void groupsTransfersByIuv() {
+        List<PaymentOption> options = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            options.add(new PaymentOption("iuv" + i % 4, i, RetryStep.NONE.name()));
+        }
+        List<Integer> groupSizes = new CopyOnWriteArrayList<>();
+
+        List<PaymentOption> failed = new ReportDispatcher(2).dispatchByIuv(options, transfers -> {
+            groupSizes.add(transfers.size());
+            transfers.forEach(transfer -> assertEquals(transfers.get(0).getOptionId(), transfer.getOptionId()));
+            RetryStep step = "iuv1".equals(transfers.get(0).getOptionId()) ? RetryStep.RETRY : RetryStep.DONE;
+            return Collections.nCopies(transfers.size(), step);
+        });
+
+        assertEquals(List.of(3, 3, 3, 3), groupSizes);
+        assertEquals(3, failed.size());
+        failed.forEach(option -> assertEquals("iuv1", option.getOptionId()));
+        assertEquals(List.of(1, 5, 9), List.of(failed.get(0).getTransferId(), failed.get(1).getTransferId(), failed.get(2).getTransferId()));
+    }
+
+    @Test
+    void defersOnlyOptionsNotStartedBeforeTheDeadline() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch lateOutcome = new CountDownLatch(2);
+        List<PaymentOption> options = options(6);
+
+        long start = System.nanoTime();
+        List<PaymentOption> failed = new ReportDispatcher(2).dispatch(options, option -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            lateOutcome.countDown();
+            return RetryStep.DONE;
+        }, Deadline.after(200));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsed < 2000, "waited " + elapsed);
+        assertEquals(options, failed);
+        // the calls in flight may still succeed: they are retried, not deferred
+        assertEquals(RetryStep.RETRY.name(), options.get(0).getRetryAction());
+        assertEquals(RetryStep.RETRY.name(), options.get(1).getRetryAction());
+        for (int i = 2; i < 6; i++) {
+            assertEquals(RetryStep.DEFERRED.name(), options.get(i).getRetryAction());
+        }
+
+        // the in-flight calls complete after the deadline: their outcome doesn't change the options
+        release.countDown();
+        assertTrue(lateOutcome.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(RetryStep.RETRY.name(), options.get(0).getRetryAction());
+        assertEquals(RetryStep.RETRY.name(), options.get(1).getRetryAction());
+    }
+
+    private static List<PaymentOption> options(int size) {
+        List<PaymentOption> options = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            options.add(new PaymentOption("0203026756500" + i, i, RetryStep.NONE.name()));
+        }
+        return options;
+    }
+}
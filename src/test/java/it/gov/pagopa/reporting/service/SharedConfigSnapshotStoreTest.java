@@ -0,0 +1,225 @@
+package it.gov.pagopa.reporting.service;
+
+import com.azure.storage.blob.BlobClient;
+import it.gov.pagopa.reporting.models.cache.CacheResponse;
+import it.gov.pagopa.reporting.models.cache.CreditorInstitutionStation;
+import it.gov.pagopa.reporting.models.cache.Station;
+import org.junit.jupiter.api.Test;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SharedConfigSnapshotStoreTest {
+
+    @Test
+    void oneInstanceDownloadsForAll() throws Exception {
+        FakeBlob blob = new FakeBlob();
+        AtomicInteger downloads = new AtomicInteger();
+        Callable<CacheResponse> upstream = () -> cacheResponse("S" + downloads.incrementAndGet());
+        InMemoryStore first = new InMemoryStore(blob);
+        InMemoryStore second = new InMemoryStore(blob);
+
+        assertEquals("S1", stationCode(first.load(upstream)));
+        assertEquals("S1", stationCode(second.load(upstream)));
+        assertEquals("S1", stationCode(second.load(upstream)));
+
+        assertEquals(1, downloads.get());
+        assertEquals(1, blob.uploads);
+        // the last read of the second instance is a conditional GET
+        assertEquals(1, second.notModified);
+        assertEquals(null, blob.leaseId);
+    }
+
+    @Test
+    void staleBlobIsServedWhileAnotherInstanceRefreshesIt() throws Exception {
+        FakeBlob blob = new FakeBlob();
+        OffsetDateTime written = OffsetDateTime.now().minusDays(2);
+        blob.write(SharedConfigSnapshotStore.serialize(cacheResponse("OLD")), written);
+        blob.leaseId = "another instance";
+        AtomicInteger downloads = new AtomicInteger();
+
+        ConfigSnapshotCache.Loaded loaded = new InMemoryStore(blob).load(() -> cacheResponse("S" + downloads.incrementAndGet()));
+
+        assertEquals("OLD", stationCode(loaded));
+        assertEquals(0, downloads.get());
+        // served as stale, with the time of the blob write
+        assertTrue(loaded.isStale());
+        assertEquals(written.toInstant().toEpochMilli(), loaded.getDownloadedAt());
+    }
+
+    @Test
+    void freshBlobKeepsItsWriteTime() throws Exception {
+        FakeBlob blob = new FakeBlob();
+        OffsetDateTime written = OffsetDateTime.now().minusMinutes(10);
+        blob.write(SharedConfigSnapshotStore.serialize(cacheResponse("S1")), written);
+
+        ConfigSnapshotCache.Loaded loaded = new InMemoryStore(blob).load(() -> cacheResponse("NEW"));
+
+        assertEquals("S1", stationCode(loaded));
+        assertFalse(loaded.isStale());
+        assertEquals(written.toInstant().toEpochMilli(), loaded.getDownloadedAt());
+    }
+
+    @Test
+    void staleBlobIsRefreshedByTheLeaseHolder() throws Exception {
+        FakeBlob blob = new FakeBlob();
+        blob.write(SharedConfigSnapshotStore.serialize(cacheResponse("OLD")), OffsetDateTime.now().minusDays(2));
+
+        ConfigSnapshotCache.Loaded loaded = new InMemoryStore(blob).load(() -> cacheResponse("NEW"));
+
+        assertEquals("NEW", stationCode(loaded));
+        assertFalse(loaded.isStale());
+        assertEquals("NEW", stationCode(SharedConfigSnapshotStore.deserialize(blob.data)));
+    }
+
+    @Test
+    void leaseIsRenewedWhileDownloading() throws Exception {
+        FakeBlob blob = new FakeBlob();
+        InMemoryStore store = new InMemoryStore(blob) {
+            @Override
+            protected long getLeaseRenewalMillis() {
+                return 20;
+            }
+        };
+
+        ConfigSnapshotCache.Loaded loaded = store.load(() -> {
+            Thread.sleep(200);
+            return cacheResponse("SLOW");
+        });
+        int renewals = blob.renewals.get();
+        Thread.sleep(100);
+
+        assertEquals("SLOW", stationCode(loaded));
+        assertTrue(renewals >= 2, "renewed " + renewals + " times");
+        // no renewal once the lease is released
+        assertEquals(renewals, blob.renewals.get());
+        assertEquals(1, blob.uploads);
+        assertEquals(null, blob.leaseId);
+    }
+
+    @Test
+    void storageErrorsFallBackToUpstream() throws Exception {
+        InMemoryStore store = new InMemoryStore(new FakeBlob()) {
+            @Override
+            protected Download download(BlobClient blobClient, String ifNoneMatch) {
+                throw new IllegalStateException("storage down");
+            }
+        };
+
+        assertEquals("S1", stationCode(store.load(() -> cacheResponse("S1"))));
+    }
+
+    private static String stationCode(ConfigSnapshotCache.Loaded loaded) {
+        return stationCode(loaded.getContent());
+    }
+
+    private static String stationCode(CacheResponse content) {
+        return content.getStations().get(0).getStationCode();
+    }
+
+    private static CacheResponse cacheResponse(String stationCode) {
+        return CacheResponse.builder()
+                .stations(List.of(Station.builder().stationCode(stationCode).brokerCode("broker").password("pwd").enabled(true).build()))
+                .creditorInstitutionStations(List.of(CreditorInstitutionStation.builder()
+                        .creditorInstitutionCode("PA").stationCode(stationCode).build()))
+                .build();
+    }
+
+    private static class FakeBlob {
+        private boolean exists;
+        private String etag;
+        private OffsetDateTime lastModified;
+        private byte[] data = new byte[0];
+        private String leaseId;
+        private int uploads;
+        private final AtomicInteger renewals = new AtomicInteger();
+
+        private synchronized void write(byte[] data, OffsetDateTime lastModified) {
+            this.exists = true;
+            this.data = data;
+            this.etag = UUID.randomUUID().toString();
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class InMemoryStore extends SharedConfigSnapshotStore {
+        private final FakeBlob blob;
+        private int notModified;
+
+        private InMemoryStore(FakeBlob blob) {
+            super(null, "container", "blob", 3600, 60, 1000);
+            this.blob = blob;
+        }
+
+        @Override
+        protected BlobClient getBlobClient() {
+            return null;
+        }
+
+        @Override
+        protected Download download(BlobClient blobClient, String ifNoneMatch) {
+            synchronized (blob) {
+                if (!blob.exists) {
+                    return null;
+                }
+                if (blob.etag.equals(ifNoneMatch)) {
+                    notModified++;
+                    return Download.NOT_MODIFIED;
+                }
+                return new Download(blob.etag, blob.lastModified, blob.data);
+            }
+        }
+
+        @Override
+        protected void create(BlobClient blobClient) {
+            synchronized (blob) {
+                if (!blob.exists) {
+                    blob.write(new byte[0], OffsetDateTime.now());
+                }
+            }
+        }
+
+        @Override
+        protected String acquireLease(BlobClient blobClient, int leaseSeconds) {
+            synchronized (blob) {
+                if (blob.leaseId != null) {
+                    return null;
+                }
+                blob.leaseId = UUID.randomUUID().toString();
+                return blob.leaseId;
+            }
+        }
+
+        @Override
+        protected void upload(BlobClient blobClient, byte[] data, String leaseId) {
+            synchronized (blob) {
+                assertEquals(blob.leaseId, leaseId);
+                blob.write(data, OffsetDateTime.now());
+                blob.uploads++;
+            }
+        }
+
+        @Override
+        protected void renewLease(BlobClient blobClient, String leaseId) {
+            synchronized (blob) {
+                assertEquals(blob.leaseId, leaseId);
+                blob.renewals.incrementAndGet();
+            }
+        }
+
+        @Override
+        protected void releaseLease(BlobClient blobClient, String leaseId) {
+            synchronized (blob) {
+                assertEquals(blob.leaseId, leaseId);
+                blob.leaseId = null;
+            }
+        }
+    }
+}
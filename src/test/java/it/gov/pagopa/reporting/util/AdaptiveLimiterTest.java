@@ -0,0 +1,92 @@
+package it.gov.pagopa.reporting.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdaptiveLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(2000);
+
+    @Test
+    void blocksOverTheLimit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, 1000);
+
+        assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+        assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+        assertFalse(limiter.acquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release(FAST, 200);
+        assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void decreasesOnOverload() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 2, 10, 1000, 0.5, clock::get);
+
+        limiter.acquire(0, TimeUnit.MILLISECONDS);
+        assertEquals(5, limiter.release(FAST, 503));
+        clock.addAndGet(SLOW);
+        limiter.acquire(0, TimeUnit.MILLISECONDS);
+        assertEquals(2, limiter.release(FAST, 429));
+        clock.addAndGet(SLOW);
+        limiter.acquire(0, TimeUnit.MILLISECONDS);
+        // never under the min limit
+        assertEquals(2, limiter.release(SLOW, 200));
+        clock.addAndGet(SLOW);
+        limiter.acquire(0, TimeUnit.MILLISECONDS);
+        assertEquals(2, limiter.release(FAST, -1));
+    }
+
+    @Test
+    void decreasesOncePerWindow() throws Exception {
+        AtomicLong clock = new AtomicLong();
+        AdaptiveLimiter limiter = new AdaptiveLimiter(50, 1, 50, 1000, 0.7, clock::get);
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+        }
+        // the calls in flight fail together: a single decrease
+        for (int i = 0; i < 50; i++) {
+            limiter.release(FAST, 503);
+        }
+        assertEquals(35, limiter.getLimit());
+
+        // the next failure after the window decreases again
+        clock.addAndGet(SLOW);
+        limiter.acquire(0, TimeUnit.MILLISECONDS);
+        assertEquals(24, limiter.release(FAST, 503));
+    }
+
+    @Test
+    void increasesOnSuccess() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 4, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(0, TimeUnit.MILLISECONDS);
+            limiter.release(FAST, 200);
+        }
+        // never over the max limit
+        assertEquals(4, limiter.getLimit());
+
+    }
+
+    @Test
+    void clientErrorsLeaveTheLimit() throws Exception {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(3, 1, 10, 1000);
+
+        // client errors are neither a sign of overload nor of spare capacity
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(0, TimeUnit.MILLISECONDS);
+            assertEquals(3, limiter.release(FAST, i % 2 == 0 ? 404 : 409));
+        }
+    }
+}
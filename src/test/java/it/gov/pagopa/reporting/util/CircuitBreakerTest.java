@@ -0,0 +1,142 @@
+package it.gov.pagopa.reporting.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final CircuitBreaker breaker = new CircuitBreaker(3, 1000, 4, now::get);
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        fail(2);
+        succeed(1);
+        fail(2);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        fail(1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+    }
+
+    @Test
+    void probesGraduallyAndCloses() {
+        fail(3);
+        elapse(1000);
+
+        // one probe at a time
+        CircuitBreaker.Permit probe = breaker.tryAcquire();
+        assertTrue(probe.isProbe());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+        breaker.onSuccess(probe);
+
+        // then two
+        CircuitBreaker.Permit first = breaker.tryAcquire();
+        CircuitBreaker.Permit second = breaker.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(breaker.tryAcquire());
+        breaker.onSuccess(first);
+        breaker.onSuccess(second);
+
+        succeed(1);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void failedProbeReopens() {
+        fail(3);
+        elapse(1000);
+
+        breaker.onFailure(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertNull(breaker.tryAcquire());
+
+        elapse(999);
+        assertNull(breaker.tryAcquire());
+        elapse(1);
+        assertNotNull(breaker.tryAcquire());
+    }
+
+    @Test
+    void lateCallsDontCountAsProbes() {
+        // admitted while closed, completed once half-open
+        CircuitBreaker.Permit late = breaker.tryAcquire();
+        assertFalse(late.isProbe());
+        fail(3);
+        elapse(1000);
+
+        CircuitBreaker.Permit probe = breaker.tryAcquire();
+        breaker.onSuccess(late);
+        breaker.onFailure(late);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        // the probe slot is still taken
+        assertNull(breaker.tryAcquire());
+
+        breaker.onSuccess(probe);
+        CircuitBreaker.Permit first = breaker.tryAcquire();
+        CircuitBreaker.Permit second = breaker.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(breaker.tryAcquire());
+    }
+
+    @Test
+    void skippedProbeFreesItsSlot() {
+        fail(3);
+        elapse(1000);
+
+        CircuitBreaker.Permit probe = breaker.tryAcquire();
+        assertNull(breaker.tryAcquire());
+        breaker.onSkipped(probe);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertNotNull(breaker.tryAcquire());
+    }
+
+    @Test
+    void probesOfPreviousRoundsAreIgnored() {
+        fail(3);
+        elapse(1000);
+        CircuitBreaker.Permit old = breaker.tryAcquire();
+        breaker.onSkipped(old);
+        breaker.onFailure(breaker.tryAcquire());
+        elapse(1000);
+
+        CircuitBreaker.Permit probe = breaker.tryAcquire();
+        breaker.onSkipped(old);
+        // the old permit didn't free the slot of the new probe
+        assertNull(breaker.tryAcquire());
+        breaker.onSuccess(probe);
+    }
+
+    private void fail(int calls) {
+        for (int i = 0; i < calls; i++) {
+            CircuitBreaker.Permit permit = breaker.tryAcquire();
+            assertNotNull(permit);
+            breaker.onFailure(permit);
+        }
+    }
+
+    private void succeed(int calls) {
+        for (int i = 0; i < calls; i++) {
+            CircuitBreaker.Permit permit = breaker.tryAcquire();
+            assertNotNull(permit);
+            breaker.onSuccess(permit);
+        }
+    }
+
+    private void elapse(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
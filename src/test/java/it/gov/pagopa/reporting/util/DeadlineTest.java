@@ -0,0 +1,47 @@
+package it.gov.pagopa.reporting.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeadlineTest {
+
+    @Test
+    void timeoutsShrinkToTheRemainingBudget() {
+        AtomicLong now = new AtomicLong();
+        Deadline deadline = Deadline.after(10_000, now::get);
+
+        assertEquals(5_000, deadline.timeoutMillis(5_000));
+        assertTrue(deadline.allows(10_000));
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(8_000));
+        assertEquals(2_000, deadline.remainingMillis());
+        assertEquals(2_000, deadline.timeoutMillis(5_000));
+        assertFalse(deadline.allows(5_000));
+        assertFalse(deadline.isExpired());
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(12_000));
+        assertTrue(deadline.isExpired());
+        // an expired deadline still gives a valid timeout, the call fails at once
+        assertEquals(1, deadline.timeoutMillis(5_000));
+    }
+
+    @Test
+    void none() {
+        assertFalse(Deadline.none().isExpired());
+        assertTrue(Deadline.none().allows(Long.MAX_VALUE));
+        assertEquals(5_000, Deadline.none().timeoutMillis(5_000));
+    }
+
+    @Test
+    void forInvocation() {
+        // 300 seconds of function timeout less 10 seconds of margin
+        long remaining = Deadline.forInvocation().remainingMillis();
+        assertTrue(remaining > 280_000 && remaining <= 290_000);
+    }
+}
@@ -0,0 +1,70 @@
+package it.gov.pagopa.reporting.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HashedTimingWheelTest {
+
+    private final HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", 5, 8);
+
+    @AfterEach
+    void close() {
+        wheel.close();
+    }
+
+    @Test
+    void firesInDeadlineOrder() throws Exception {
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+
+        // 8 buckets of 5 ms: 120 ms needs several rounds of the wheel
+        wheel.schedule(() -> { fired.add(120); done.countDown(); }, 120, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { fired.add(0); done.countDown(); }, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { fired.add(60); done.countDown(); }, 60, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { fired.add(20); done.countDown(); }, 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 20, 60, 120), fired);
+    }
+
+    @Test
+    void neverFiresEarly() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        long[] elapsed = new long[1];
+
+        wheel.schedule(() -> {
+            elapsed[0] = System.nanoTime() - start;
+            done.countDown();
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(50), "elapsed " + elapsed[0]);
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheWheel() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("task");
+        }, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(done::countDown, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rejectsAfterClose() {
+        wheel.close();
+        assertThrows(IllegalStateException.class, () -> wheel.schedule(() -> { }, 0, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,48 @@
+package it.gov.pagopa.reporting.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryPolicyTest {
+
+    @Test
+    void growsExponentiallyUpToTheCap() {
+        RetryPolicy policy = new RetryPolicy(10, 70, 2, false);
+
+        assertEquals(10, policy.delaySeconds(0));
+        assertEquals(20, policy.delaySeconds(1));
+        assertEquals(40, policy.delaySeconds(2));
+        assertEquals(70, policy.delaySeconds(3));
+        assertEquals(70, policy.delaySeconds(30));
+        assertEquals(10, policy.delaySeconds(-1));
+    }
+
+    @Test
+    void equalJitter() {
+        assertEquals(20, new RetryPolicy(10, 70, 2, true, () -> 0).delaySeconds(2));
+        assertEquals(30, new RetryPolicy(10, 70, 2, true, () -> 0.5).delaySeconds(2));
+        assertEquals(40, new RetryPolicy(10, 70, 2, true, () -> 1).delaySeconds(2));
+        // the first retry is never immediate
+        assertEquals(5, new RetryPolicy(10, 70, 2, true, () -> 0).delaySeconds(0));
+
+        RetryPolicy policy = new RetryPolicy(10, 70, 2, true);
+        Set<Integer> delays = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            int delay = policy.delaySeconds(3);
+            assertTrue(delay >= 35 && delay <= 70);
+            delays.add(delay);
+        }
+        // retries of the same attempt are spread
+        assertTrue(delays.size() > 10);
+    }
+
+    @Test
+    void zeroBaseMeansNoDelay() {
+        assertEquals(0, new RetryPolicy(0, 0, 2, true).delaySeconds(5));
+    }
+}
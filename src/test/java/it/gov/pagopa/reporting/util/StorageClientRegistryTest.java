@@ -0,0 +1,44 @@
+package it.gov.pagopa.reporting.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class StorageClientRegistryTest {
+
+    private static final String CONNECTION_STRING = "DefaultEndpointsProtocol=http;AccountName=devstoreaccount1;"
+            + "AccountKey=Eby8vdM02xNOcqFlqUwJPLlmEtlCDXJ1OUzFT50uSRZ6IFsuFq2UVErCz4I6tq/K1SZFPTOtr/KBHBeksoGMGw==;"
+            + "BlobEndpoint=http://127.0.0.1:10000/devstoreaccount1;"
+            + "QueueEndpoint=http://127.0.0.1:10001/devstoreaccount1;"
+            + "TableEndpoint=http://127.0.0.1:10002/devstoreaccount1";
+
+    @AfterEach
+    void clear() {
+        StorageClientRegistry.clear();
+    }
+
+    @Test
+    void clientsAreCachedByResource() throws Exception {
+        assertSame(StorageClientRegistry.getQueue(CONNECTION_STRING, "optionsid"),
+                StorageClientRegistry.getQueue(CONNECTION_STRING, "optionsid"));
+        assertNotSame(StorageClientRegistry.getQueue(CONNECTION_STRING, "optionsid"),
+                StorageClientRegistry.getQueue(CONNECTION_STRING, "flowsid"));
+
+        assertSame(StorageClientRegistry.getTable(CONNECTION_STRING, "flows"),
+                StorageClientRegistry.getTable(CONNECTION_STRING, "flows"));
+
+        assertSame(StorageClientRegistry.getBlobContainerClient(CONNECTION_STRING, "flows"),
+                StorageClientRegistry.getBlobContainerClient(CONNECTION_STRING, "flows"));
+        assertNotSame(StorageClientRegistry.getBlobContainerClient(CONNECTION_STRING, "flows"),
+                StorageClientRegistry.getBlobContainerClient(CONNECTION_STRING, "optionschunks"));
+    }
+
+    @Test
+    void clearDropsClients() throws Exception {
+        Object queue = StorageClientRegistry.getQueue(CONNECTION_STRING, "optionsid");
+        StorageClientRegistry.clear();
+        assertNotSame(queue, StorageClientRegistry.getQueue(CONNECTION_STRING, "optionsid"));
+    }
+}
@@ -0,0 +1,24 @@
+package it.gov.pagopa.reporting.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLInputFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class XmlParserProviderTest {
+
+    @Test
+    void xmlInputFactoryShared() {
+        assertSame(XmlParserProvider.getXMLInputFactory(), XmlParserProvider.getXMLInputFactory());
+    }
+
+    @Test
+    void xmlInputFactoryDisablesDtd() {
+        XMLInputFactory factory = XmlParserProvider.getXMLInputFactory();
+
+        assertEquals(false, factory.getProperty(XMLInputFactory.SUPPORT_DTD));
+        assertEquals(false, factory.getProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES));
+    }
+}